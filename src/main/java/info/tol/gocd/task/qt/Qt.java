@@ -62,6 +62,13 @@ public class Qt {
     return this.home;
   }
 
+  /**
+   * Get the {@link QtToolIndex} of the Qt HOME directory
+   */
+  protected final QtToolIndex getToolIndex() {
+    return QtToolIndex.of(getQtHome());
+  }
+
   /**
    * Get the Qt BASE directory
    */
@@ -90,9 +97,11 @@ public class Qt {
     if (!isWindows())
       return "make";
 
-    File jom = new File(getQtBase(), "Tools/QtCreator/bin/jom/jom");
-    String file = jom.getAbsolutePath();
-    return file.contains(" ") ? "\"" + file + "\"" : file;
+    File jom = getToolIndex().getJom();
+    if (jom == null) {
+      jom = new File(getQtBase(), "Tools/QtCreator/bin/jom/jom");
+    }
+    return jom.getAbsolutePath();
   }
 
   /**
@@ -106,13 +115,14 @@ public class Qt {
 
 
   /**
-   * Get the QtInstallerFramework binary
+   * Get the QtInstallerFramework binary of the newest version
    */
   protected final File getInstallerBin() {
-    Path path = getQtBase().toPath().resolve("Tools").resolve("QtInstallerFramework");
-    for (File file : path.toFile().listFiles()) {
-      return path.resolve(file.getName()).resolve("bin").toFile();
+    File bin = getToolIndex().getInstallerBin();
+    if (bin != null) {
+      return bin;
     }
+    Path path = getQtBase().toPath().resolve("Tools").resolve("QtInstallerFramework");
     return path.resolve("4.0").resolve("bin").toFile();
   }
 
@@ -182,10 +192,30 @@ public class Qt {
    * @throws IOException
    */
   public final Process build() throws IOException {
+    return createBuilder().start();
+  }
+
+  /**
+   * Build the Qt {@link Process}, writing the output and the errors to a file.
+   *
+   * @param output
+   * @throws IOException
+   */
+  public final Process build(File output) throws IOException {
+    ProcessBuilder builder = createBuilder();
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(output);
+    return builder.start();
+  }
+
+  /**
+   * Create the {@link ProcessBuilder} of the Qt command.
+   */
+  private ProcessBuilder createBuilder() {
     ProcessBuilder builder = new ProcessBuilder(getCommand());
     builder.directory(new File(getWorkingDir().getAbsolutePath()));
     builder.environment().putAll(getEnvironment().toMap());
-    return builder.start();
+    return builder;
   }
 
   /**
@@ -15,11 +15,16 @@
 
 package info.tol.gocd.task.qt;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import info.tol.gocd.task.util.TaskRequest;
+import info.tol.gocd.util.Host;
 
 /**
  * The {@link Qt2} class.
@@ -45,6 +50,40 @@ public class Qt2 {
 
   public static final String  ANDROID_ABIS     = "ANDROID_ABIS";
 
+  public static final String  QT_PARALLEL_TARGETS = "QT_PARALLEL_TARGETS";
+  public static final String  QT_MAKE_JOBS        = "QT_MAKE_JOBS";
+  public static final String  QT_MAKE_JOB_MEMORY  = "QT_MAKE_JOB_MEMORY";
+
+  public static final String  QT_COMPILER_CACHE      = "QT_COMPILER_CACHE";
+  public static final String  QT_COMPILER_CACHE_DIR  = "QT_COMPILER_CACHE_DIR";
+  public static final String  QT_COMPILER_CACHE_SIZE = "QT_COMPILER_CACHE_SIZE";
+
+  public static final String  QT_BUILD_CACHE      = "QT_BUILD_CACHE";
+  public static final String  QT_BUILD_CACHE_SIZE = "QT_BUILD_CACHE_SIZE";
+
+  public static final String  QT_SPLIT_ABIS       = "QT_SPLIT_ABIS";
+
+  public static final String  QT_TEST_JOBS        = "QT_TEST_JOBS";
+  public static final String  QT_TEST_SHARDS      = "QT_TEST_SHARDS";
+  public static final String  QT_TEST_CACHE       = "QT_TEST_CACHE";
+  public static final String  QT_TEST_RETRIES     = "QT_TEST_RETRIES";
+
+  public static final String  QT_CONSOLE          = "QT_CONSOLE";
+  public static final String  QT_CONSOLE_TAIL     = "QT_CONSOLE_TAIL";
+
+  public static final String  QT_HISTORY          = "QT_HISTORY";
+  public static final String  QT_TIMING_WARN      = "QT_TIMING_WARN";
+  public static final String  QT_TIMING_FAIL      = "QT_TIMING_FAIL";
+  public static final String  QT_MONITOR_INTERVAL = "QT_MONITOR_INTERVAL";
+
+  public static final String  QT_SETUP_SCRIPT     = "QT_SETUP_SCRIPT";
+  public static final String  QT_SETUP_ARGS       = "QT_SETUP_ARGS";
+  public static final String  VC_VARSALL          = "VC_VARSALL";
+
+  public static final String  QT_ARCHIVE_LEVEL    = "QT_ARCHIVE_LEVEL";
+  public static final String  QT_ARCHIVE_JOBS     = "QT_ARCHIVE_JOBS";
+  public static final String  QT_DEDUP            = "QT_DEDUP";
+
   /**
    * Get the Qt Architecture.
    *
@@ -66,6 +105,26 @@ public class Qt2 {
     return request.getEnvironment().get(Qt2.QT_SPEC);
   }
 
+  /**
+   * Get the list of Qt Architectures, for a matrix build.
+   *
+   * @param request
+   * @param config
+   */
+  public static final List<String> getArchs(TaskRequest request, QtConfig config) {
+    return Qt2.getList(Qt2.getArch(request, config));
+  }
+
+  /**
+   * Get the list of Qt Specifications, for a matrix build.
+   *
+   * @param request
+   * @param config
+   */
+  public static final List<String> getSpecs(TaskRequest request, QtConfig config) {
+    return Qt2.getList(Qt2.getSpec(request, config));
+  }
+
   /**
    * Get the Qt Specification.
    *
@@ -81,6 +140,199 @@ public class Qt2 {
     return configs;
   }
 
+  /**
+   * Get the number of make targets that are build concurrently.
+   *
+   * @param request
+   * @param config
+   */
+  public static final int getParallelTargets(TaskRequest request, QtConfig config) {
+    return Qt2.getInteger(request, Qt2.QT_PARALLEL_TARGETS, 1);
+  }
+
+  /**
+   * Split a comma separated list.
+   *
+   * @param text
+   */
+  private static List<String> getList(String text) {
+    List<String> values = new ArrayList<>();
+    if ((text != null) && !text.trim().isEmpty()) {
+      Arrays.asList(text.split(",")).stream().map(String::trim).filter(v -> !v.isEmpty()).forEach(values::add);
+    }
+    return values;
+  }
+
+  /**
+   * Returns <code>true</code> if the Android ABIs are build separately and concurrently.
+   *
+   * @param request
+   * @param config
+   */
+  public static final boolean isSplitAbis(TaskRequest request, QtConfig config) {
+    return Boolean.parseBoolean(request.getEnvironment().get(Qt2.QT_SPLIT_ABIS));
+  }
+
+  /**
+   * Get the number of test executables that run concurrently, by default the number of processors.
+   *
+   * @param request
+   * @param config
+   */
+  public static final int getTestJobs(TaskRequest request, QtConfig config) {
+    return Qt2.getInteger(request, Qt2.QT_TEST_JOBS, Host.getProcessors());
+  }
+
+  /**
+   * Get the number of shards, into which the test functions of a single test executable are split.
+   * By default the test functions are not split.
+   *
+   * @param request
+   * @param config
+   */
+  public static final int getTestShards(TaskRequest request, QtConfig config) {
+    return Qt2.getInteger(request, Qt2.QT_TEST_SHARDS, 1);
+  }
+
+  /**
+   * Get the number of attempts to run the failed test functions again. By default, or for a
+   * negative number, failed test functions are not run again.
+   *
+   * @param request
+   * @param config
+   */
+  public static final int getTestRetries(TaskRequest request, QtConfig config) {
+    String value = request.getEnvironment().get(Qt2.QT_TEST_RETRIES);
+    try {
+      return (value == null) || value.trim().isEmpty() ? 0 : Math.max(0, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the console is bounded: repeated lines of the processes are
+   * suppressed and the complete output is written to a log file.
+   *
+   * @param request
+   * @param config
+   */
+  public static final boolean isBoundedConsole(TaskRequest request, QtConfig config) {
+    return "bounded".equalsIgnoreCase(request.getEnvironment().get(Qt2.QT_CONSOLE));
+  }
+
+  /**
+   * Get the number of last lines, that are printed if a process fails on a bounded console.
+   *
+   * @param request
+   * @param config
+   */
+  public static final int getConsoleTail(TaskRequest request, QtConfig config) {
+    return Qt2.getInteger(request, Qt2.QT_CONSOLE_TAIL, 200);
+  }
+
+  /**
+   * Get the interval in milliseconds, in which the resources of the processes are sampled.
+   *
+   * @param request
+   * @param config
+   */
+  public static final int getMonitorInterval(TaskRequest request, QtConfig config) {
+    return Qt2.getInteger(request, Qt2.QT_MONITOR_INTERVAL, 1000);
+  }
+
+  /**
+   * Get the compression level 0-9 of the component archives, that are prepared before the
+   * repository generator runs. Returns -1 if the archives are not prepared.
+   *
+   * @param request
+   */
+  public static final int getArchiveLevel(TaskRequest request) {
+    return Qt2.getArchiveLevel(request, -1);
+  }
+
+  /**
+   * Get the compression level 0-9 of the component archives, or the default level if
+   * {@link #QT_ARCHIVE_LEVEL} is not set.
+   *
+   * @param request
+   * @param defaultLevel
+   */
+  public static final int getArchiveLevel(TaskRequest request, int defaultLevel) {
+    String value = request.getEnvironment().get(Qt2.QT_ARCHIVE_LEVEL);
+    try {
+      return (value == null) || value.trim().isEmpty() ? defaultLevel
+          : Math.min(9, Math.max(0, Integer.parseInt(value.trim())));
+    } catch (NumberFormatException e) {
+      return defaultLevel;
+    }
+  }
+
+  /**
+   * Get the number of component archives, that are prepared concurrently. By default an archive
+   * is prepared per processor.
+   *
+   * @param request
+   */
+  public static final int getArchiveJobs(TaskRequest request) {
+    return Qt2.getInteger(request, Qt2.QT_ARCHIVE_JOBS, Host.getProcessors());
+  }
+
+  /**
+   * Returns <code>true</code> if the identical files of the packages are replaced by hard links,
+   * before the repository or the installer is built.
+   *
+   * @param request
+   */
+  public static final boolean isDeduplicate(TaskRequest request) {
+    return Boolean.parseBoolean(request.getEnvironment().get(Qt2.QT_DEDUP));
+  }
+
+  /**
+   * Get the setup script of the toolchain, that defines the environment of the build. By default
+   * this is the vcvarsall.bat of {@link #VC_VARSALL} on Windows.
+   *
+   * @param request
+   */
+  public static final Path getSetupScript(TaskRequest request) {
+    String script = request.getEnvironment().get(Qt2.QT_SETUP_SCRIPT);
+    if ((script != null) && !script.trim().isEmpty()) {
+      return Paths.get(script.trim());
+    }
+    String vcvarsall = request.getEnvironment().get(Qt2.VC_VARSALL);
+    return Qt2.isWindows() && (vcvarsall != null) ? Paths.get(vcvarsall, "vcvarsall.bat") : null;
+  }
+
+  /**
+   * Get the arguments of the setup script. By default vcvarsall.bat is called for x86_amd64.
+   *
+   * @param request
+   */
+  public static final List<String> getSetupArguments(TaskRequest request) {
+    String arguments = request.getEnvironment().get(Qt2.QT_SETUP_ARGS);
+    if (arguments == null) {
+      String script = request.getEnvironment().get(Qt2.QT_SETUP_SCRIPT);
+      return (script == null) || script.trim().isEmpty() ? Arrays.asList("x86_amd64") : Collections.emptyList();
+    }
+    return Arrays.stream(arguments.trim().split("\\s+")).filter(a -> !a.isEmpty()).collect(Collectors.toList());
+  }
+
+  /**
+   * Get a positive number from the environment, or the default value.
+   *
+   * @param request
+   * @param name
+   * @param defaultValue
+   */
+  protected static int getInteger(TaskRequest request, String name, int defaultValue) {
+    String value = request.getEnvironment().get(name);
+    try {
+      return (value == null) || value.trim().isEmpty() ? defaultValue : Math.max(1, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   public static boolean isWindows() {
     String osName = System.getProperty("os.name");
     return (osName != null) && osName.toLowerCase().contains("windows");
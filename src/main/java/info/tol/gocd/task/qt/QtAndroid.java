@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+
+import info.tol.gocd.util.FileTree;
+
+/**
+ * The {@link QtAndroid} merges the separate builds of the Android ABIs into the layout, that
+ * androiddeployqt expects from a multi ABI build: the libraries in
+ * <code>android-build/libs/&lt;abi&gt;</code> and a deployment settings file with all
+ * architectures.
+ */
+public class QtAndroid {
+
+  private static final Pattern SETTINGS      = Pattern.compile("android-.*-deployment-settings\\.json");
+  private static final String  ARCHITECTURES = "architectures";
+
+  /**
+   * Constructs an instance of {@link QtAndroid}.
+   */
+  private QtAndroid() {}
+
+  /**
+   * Split the Android ABIs, separated by comma or whitespace.
+   *
+   * @param abis
+   */
+  public static List<String> getAbis(String abis) {
+    List<String> list = new ArrayList<>();
+    if (abis != null) {
+      Arrays.asList(abis.split("[,\\s]+")).stream().filter(a -> !a.isEmpty()).forEach(list::add);
+    }
+    return list;
+  }
+
+  /**
+   * Merges the ABI builds into the working directory and returns the number of merged files.
+   *
+   * @param workingDir
+   * @param builds
+   */
+  public static int merge(Path workingDir, Map<String, Path> builds) throws IOException {
+    int count = 0;
+    Map<Path, List<Path>> settings = new LinkedHashMap<>();
+    for (String abi : builds.keySet()) {
+      Path buildDir = builds.get(abi);
+      String libs = String.join("/", "android-build", "libs", abi, "");
+      for (Path file : FileTree.list(buildDir, Collections.emptyList())) {
+        String relative = buildDir.relativize(file).toString().replace('\\', '/');
+        if (relative.contains(libs)) {
+          Path target = workingDir.resolve(relative);
+          Files.createDirectories(target.getParent());
+          FileTree.copyFile(file, target, true);
+          count++;
+        } else if (QtAndroid.SETTINGS.matcher(file.getFileName().toString()).matches()) {
+          settings.computeIfAbsent(workingDir.resolve(relative), p -> new ArrayList<>()).add(file);
+        }
+      }
+    }
+
+    for (Path target : settings.keySet()) {
+      QtAndroid.mergeSettings(target, settings.get(target));
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Merges the deployment settings of the ABI builds. The architectures of all builds are combined,
+   * all other settings are taken from the first build.
+   *
+   * @param target
+   * @param sources
+   */
+  private static void mergeSettings(Path target, List<Path> sources) throws IOException {
+    JsonObjectBuilder builder = Json.createObjectBuilder();
+    JsonObjectBuilder architectures = Json.createObjectBuilder();
+    // Reverse order, so that the settings of the first build win
+    for (int index = sources.size() - 1; index >= 0; index--) {
+      JsonObject json = QtAndroid.read(sources.get(index));
+      for (String name : json.keySet()) {
+        if (QtAndroid.ARCHITECTURES.equals(name)) {
+          JsonObject archs = json.getJsonObject(name);
+          archs.keySet().forEach(n -> architectures.add(n, archs.get(n)));
+        } else {
+          builder.add(name, json.get(name));
+        }
+      }
+    }
+    builder.add(QtAndroid.ARCHITECTURES, architectures);
+
+    Files.createDirectories(target.getParent());
+    try (Writer writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8);
+        JsonWriter json = Json.createWriter(writer)) {
+      json.writeObject(builder.build());
+    }
+  }
+
+  /**
+   * Reads a JSON object.
+   *
+   * @param file
+   */
+  private static JsonObject read(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        JsonReader json = Json.createReader(reader)) {
+      return json.readObject();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import info.tol.gocd.util.FileTree;
+import info.tol.gocd.util.Scheduler;
+import info.tol.gocd.util.TarArchive;
+
+/**
+ * The {@link QtArchiver} prepares the packages for the repository generator: the
+ * <code>data</code> directory of each package is compressed into a single archive, concurrently
+ * for all packages. The repository generator copies archives as they are, so it only has to
+ * process the prepared packages.
+ *
+ * The prepared packages are kept in a staging directory, the <code>meta</code> directories are
+ * hard linked.
+ */
+public class QtArchiver {
+
+  public static final String        ARCHIVE  = "data.tar.gz";
+
+  private static final List<String> ARCHIVES = Arrays.asList(".7z", ".zip", ".tar", ".tar.gz", ".tgz", ".tar.bz2",
+      ".tbz2", ".tar.xz", ".txz");
+
+  private final Path                packages;
+  private final Path                staging;
+  private final int                 level;
+  private final int                 jobs;
+
+  /**
+   * Constructs an instance of {@link QtArchiver}.
+   *
+   * @param packages
+   * @param staging
+   * @param level
+   * @param jobs
+   */
+  private QtArchiver(Path packages, Path staging, int level, int jobs) {
+    this.packages = packages;
+    this.staging = staging;
+    this.level = level;
+    this.jobs = jobs;
+  }
+
+  /**
+   * Get the staging directory.
+   */
+  public final Path getStaging() {
+    return this.staging;
+  }
+
+  /**
+   * Returns <code>true</code> if the package has been prepared.
+   *
+   * @param name
+   */
+  public final boolean isStaged(String name) {
+    return Files.isDirectory(this.staging.resolve(name).resolve("meta"));
+  }
+
+  /**
+   * Prepares the packages concurrently and removes the prepared packages, that no longer exist.
+   *
+   * @param names
+   * @param console
+   */
+  public final void archive(Collection<String> names, Consumer<String> console) throws Exception {
+    Files.createDirectories(this.staging);
+    try (Stream<Path> stream = Files.list(this.staging)) {
+      for (Path path : stream.collect(Collectors.toList())) {
+        if (!Files.isDirectory(this.packages.resolve(path.getFileName().toString()))) {
+          FileTree.delete(path);
+        }
+      }
+    }
+
+    Scheduler scheduler = Scheduler.of(this.jobs);
+    for (String name : names) {
+      scheduler.add(name, () -> {
+        console.accept(archive(name));
+        return true;
+      });
+    }
+    scheduler.run();
+  }
+
+  /**
+   * Prepares a single package and returns the line for the console.
+   *
+   * @param name
+   */
+  private String archive(String name) throws IOException {
+    Path source = this.packages.resolve(name);
+    Path target = this.staging.resolve(name);
+    FileTree.delete(target);
+    FileTree.copy(source.resolve("meta"), target.resolve("meta"), true);
+
+    Path data = source.resolve("data");
+    Files.createDirectories(target.resolve("data"));
+    if (!Files.isDirectory(data)) {
+      return String.format("Prepared %s: no data", name);
+    }
+
+    if (QtArchiver.isArchived(data)) {
+      FileTree.copy(data, target.resolve("data"), true);
+      return String.format("Prepared %s: data is already archived", name);
+    }
+
+    long start = System.currentTimeMillis();
+    Path archive = target.resolve("data").resolve(QtArchiver.ARCHIVE);
+    long bytes = TarArchive.write(data, archive, this.level);
+    long compressed = Files.size(archive);
+    double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    double megabytes = bytes / (1024.0 * 1024.0);
+    return String.format(Locale.ROOT, "Archived %s: %.1f MB to %.1f MB (%.0f%%) in %.1fs, %.1f MB/s", name,
+        megabytes, compressed / (1024.0 * 1024.0), (bytes == 0) ? 100.0 : 100.0 * compressed / bytes, seconds,
+        megabytes / seconds);
+  }
+
+  /**
+   * Returns <code>true</code> if the data directory only contains archives.
+   *
+   * @param data
+   */
+  private static boolean isArchived(Path data) throws IOException {
+    try (Stream<Path> stream = Files.list(data)) {
+      List<Path> files = stream.collect(Collectors.toList());
+      return !files.isEmpty() && files.stream().allMatch(f -> Files.isRegularFile(f) && QtArchiver.ARCHIVES.stream()
+          .anyMatch(e -> f.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(e)));
+    }
+  }
+
+  /**
+   * Constructs an instance of {@link QtArchiver}.
+   *
+   * @param packages
+   * @param staging
+   * @param level
+   * @param jobs
+   */
+  public static QtArchiver of(Path packages, Path staging, int level, int jobs) {
+    return new QtArchiver(packages, staging, level, jobs);
+  }
+}
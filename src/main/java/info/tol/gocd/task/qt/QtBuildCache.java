@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import info.tol.gocd.util.Environment;
+import info.tol.gocd.util.FileTree;
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtBuildCache} is a local, content addressed cache of the build outputs
+ * <code>build/&lt;spec&gt;/{bin,lib,plugins,qml}</code>. The key is a hash of the source tree, the
+ * spec, the architecture, the CONFIG list and the toolchain. A cache hit restores the outputs by
+ * copies, so later steps, that write into the outputs like strip or an incremental link, can't
+ * modify the cache. The least recently used entries are removed if the cache exceeds
+ * {@link Qt2#QT_BUILD_CACHE_SIZE}.
+ *
+ * The entries are moved into place and evicted under a lock, shared by the agents and the
+ * concurrent builds of a matrix. Temporary entries of killed agents are removed on eviction.
+ */
+public class QtBuildCache {
+
+  private static final List<String> OUTPUTS   = Arrays.asList("bin", "lib", "plugins", "qml");
+  private static final List<String> TOOLCHAIN =
+      Arrays.asList(Qt2.QT_HOME, "VC_VARSALL", "ANDROID_NDK_ROOT", "ANDROID_SDK_ROOT", "CC", "CXX");
+
+  private static final Pattern      GENERATED =
+      Pattern.compile("(Makefile.*|.*\\.(o|obj|pdb|ilk)|(moc|qrc|ui)_.*|\\.qmake\\.stash)");
+
+  private static final String       COMPLETE  = ".complete";
+  private static final String       LOCK      = ".lock";
+  private static final String       TEMP      = ".tmp";
+  private static final long         SIZE      = 10L * 1024 * 1024 * 1024;
+  private static final long         STALE     = 24L * 60 * 60 * 1000;
+
+  // A FileLock is held by the JVM, so the concurrent builds of a matrix lock the monitor first
+  private static final Object       MONITOR   = new Object();
+
+
+  private final Path   cache;
+  private final Path   outputs;
+  private final String key;
+  private final long   limit;
+
+  /**
+   * Constructs an instance of {@link QtBuildCache}.
+   *
+   * @param cache
+   * @param outputs
+   * @param key
+   * @param limit
+   */
+  private QtBuildCache(Path cache, Path outputs, String key, long limit) {
+    this.cache = cache;
+    this.outputs = outputs;
+    this.key = key;
+    this.limit = limit;
+  }
+
+  /**
+   * Get the cache key.
+   */
+  public final String getKey() {
+    return this.key;
+  }
+
+  /**
+   * Restores the outputs from the cache. Returns <code>false</code> on a cache miss.
+   */
+  public final boolean restore() throws IOException {
+    Path entry = this.cache.resolve(this.key);
+    if (!Files.isRegularFile(entry.resolve(QtBuildCache.COMPLETE))) {
+      return false;
+    }
+
+    synchronized (QtBuildCache.MONITOR) {
+      try (FileChannel channel = openLock()) {
+        FileLock lock = channel.lock();
+        try {
+          // The entry may have been evicted meanwhile
+          if (!Files.isRegularFile(entry.resolve(QtBuildCache.COMPLETE))) {
+            return false;
+          }
+          for (String name : QtBuildCache.OUTPUTS) {
+            Path target = this.outputs.resolve(name);
+            FileTree.delete(target);
+            if (Files.isDirectory(entry.resolve(name))) {
+              FileTree.copy(entry.resolve(name), target, false);
+            }
+          }
+          Files.setLastModifiedTime(entry.resolve(QtBuildCache.COMPLETE),
+              FileTime.fromMillis(System.currentTimeMillis()));
+        } finally {
+          lock.release();
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stores the outputs of a successful build and removes the least recently used entries.
+   */
+  public final void store() throws IOException {
+    Path entry = this.cache.resolve(this.key);
+    if (Files.isRegularFile(entry.resolve(QtBuildCache.COMPLETE))) {
+      return;
+    }
+
+    // Copy into a temporary entry, which is renamed at once and marked complete afterwards
+    Path temp = this.cache.resolve(this.key + "." + UUID.randomUUID() + QtBuildCache.TEMP);
+    try {
+      Files.createDirectories(temp);
+      for (String name : QtBuildCache.OUTPUTS) {
+        if (Files.isDirectory(this.outputs.resolve(name))) {
+          FileTree.copy(this.outputs.resolve(name), temp.resolve(name), false);
+        }
+      }
+
+      synchronized (QtBuildCache.MONITOR) {
+        try (FileChannel channel = openLock()) {
+          FileLock lock = channel.lock();
+          try {
+            if (!Files.isRegularFile(entry.resolve(QtBuildCache.COMPLETE))) {
+              FileTree.delete(entry);
+              Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+              Files.createFile(entry.resolve(QtBuildCache.COMPLETE));
+            }
+            evict();
+          } finally {
+            lock.release();
+          }
+        }
+      }
+    } finally {
+      FileTree.delete(temp);
+    }
+  }
+
+  /**
+   * Opens the lock file of the cache.
+   */
+  private FileChannel openLock() throws IOException {
+    Files.createDirectories(this.cache);
+    return FileChannel.open(this.cache.resolve(QtBuildCache.LOCK), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Removes the least recently used entries, until the cache fits into the limit. The temporary
+   * entries of killed agents and the incomplete entries are removed. Must be called with the lock.
+   */
+  private void evict() throws IOException {
+    Map<Path, Long> sizes = new HashMap<>();
+    Map<Path, Long> times = new HashMap<>();
+    long stale = System.currentTimeMillis() - QtBuildCache.STALE;
+    try (Stream<Path> stream = Files.list(this.cache)) {
+      for (Path entry : stream.filter(Files::isDirectory).collect(Collectors.toList())) {
+        Path complete = entry.resolve(QtBuildCache.COMPLETE);
+        if (Files.isRegularFile(complete)) {
+          sizes.put(entry, FileTree.size(entry));
+          times.put(entry, Files.getLastModifiedTime(complete).toMillis());
+        } else if (!entry.getFileName().toString().endsWith(QtBuildCache.TEMP)
+            || (Files.getLastModifiedTime(entry).toMillis() < stale)) {
+          // A temporary entry is removed, once it can't be written anymore
+          FileTree.delete(entry);
+        }
+      }
+    }
+
+    List<Path> entries = new ArrayList<>(sizes.keySet());
+    Collections.sort(entries, Comparator.comparing(times::get));
+    long total = sizes.values().stream().mapToLong(Long::longValue).sum();
+    for (Path entry : entries) {
+      if ((total <= this.limit) || entry.getFileName().toString().equals(this.key)) {
+        continue;
+      }
+      FileTree.delete(entry);
+      total -= sizes.get(entry);
+    }
+  }
+
+  /**
+   * Parses a size like "512M" or "10G". A number without unit is in MiB.
+   *
+   * @param text
+   */
+  protected static long parseSize(String text) {
+    if ((text == null) || text.trim().isEmpty()) {
+      return QtBuildCache.SIZE;
+    }
+    String value = text.trim().toUpperCase();
+    int index = "KMGT".indexOf(value.charAt(value.length() - 1));
+    try {
+      if (index < 0) {
+        return Long.parseLong(value) * 1024 * 1024;
+      }
+      return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * Math.pow(1024, index + 1));
+    } catch (NumberFormatException e) {
+      return QtBuildCache.SIZE;
+    }
+  }
+
+  /**
+   * Constructs an instance of {@link QtBuildCache}, or <code>null</code> if the cache is not
+   * enabled by {@link Qt2#QT_BUILD_CACHE}.
+   *
+   * @param environment
+   * @param workingDir
+   * @param spec
+   * @param arch
+   * @param arguments
+   * @param qmake
+   */
+  public static QtBuildCache of(Environment environment, Path workingDir, String spec, String arch,
+      List<String> arguments, File qmake) throws IOException {
+    String cache = environment.get(Qt2.QT_BUILD_CACHE);
+    if ((cache == null) || cache.trim().isEmpty()) {
+      return null;
+    }
+
+    Path buildDir = workingDir.resolve("build");
+    Hash hash = Hash.sha256();
+    hash.update(spec).update(arch).update(String.join(",", arguments));
+    hash.update(qmake.getAbsolutePath() + ":" + qmake.length() + ":" + qmake.lastModified());
+    for (String name : QtBuildCache.TOOLCHAIN) {
+      hash.update(name + "=" + environment.get(name));
+    }
+    FileTree.hash(hash, workingDir, Collections.singleton(buildDir),
+        f -> !QtBuildCache.GENERATED.matcher(f.getFileName().toString()).matches());
+
+    Path outputs = buildDir.resolve(spec);
+    long limit = QtBuildCache.parseSize(environment.get(Qt2.QT_BUILD_CACHE_SIZE));
+    return new QtBuildCache(Paths.get(cache.trim()), outputs, hash.toHex(), limit);
+  }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import info.tol.gocd.util.Environment;
+
+/**
+ * The {@link QtCompilerCache} sends the compilation through ccache or sccache, as defined by
+ * {@link Qt2#QT_COMPILER_CACHE}. The cache directory and the size limit are taken from
+ * {@link Qt2#QT_COMPILER_CACHE_DIR} and {@link Qt2#QT_COMPILER_CACHE_SIZE}.
+ */
+public class QtCompilerCache {
+
+  private static final Pattern CCACHE_HIT  = Pattern.compile("^\\s*cache hit \\((direct|preprocessed)\\)\\s+(\\d+)");
+  private static final Pattern CCACHE_MISS = Pattern.compile("^\\s*cache miss\\s+(\\d+)");
+
+
+  private enum Tool {
+
+    CCACHE("ccache", "CCACHE_DIR", "CCACHE_MAXSIZE"),
+    SCCACHE("sccache", "SCCACHE_DIR", "SCCACHE_CACHE_SIZE");
+
+    private final String name;
+    private final String dir;
+    private final String size;
+
+    private Tool(String name, String dir, String size) {
+      this.name = name;
+      this.dir = dir;
+      this.size = size;
+    }
+  }
+
+  private final Tool        tool;
+  private final File        binary;
+  private final Environment environment;
+
+  private Statistics        initial;
+
+  /**
+   * Constructs an instance of {@link QtCompilerCache}.
+   *
+   * @param tool
+   * @param binary
+   * @param environment
+   */
+  private QtCompilerCache(Tool tool, File binary, Environment environment) {
+    this.tool = tool;
+    this.binary = binary;
+    this.environment = environment;
+  }
+
+  /**
+   * Returns <code>true</code> if the compiler cache was found on the agent.
+   */
+  public final boolean isEnabled() {
+    return this.binary != null;
+  }
+
+  /**
+   * Get the qmake arguments that wrap the compilers. The arguments must be placed after the
+   * project file, because they are evaluated after the project.
+   */
+  public final List<String> getQMakeArguments() {
+    if (!isEnabled()) {
+      return Collections.emptyList();
+    }
+    String path = this.binary.getAbsolutePath();
+    String wrapper = path.contains(" ") ? this.tool.name : path;
+    return Arrays.asList("-after", String.format("QMAKE_CC=%s $$QMAKE_CC", wrapper),
+        String.format("QMAKE_CXX=%s $$QMAKE_CXX", wrapper));
+  }
+
+  /**
+   * Sets the cache directory and the size limit for the process.
+   *
+   * @param environment
+   */
+  public final void updateEnvironment(Map<String, String> environment) {
+    if (!isEnabled()) {
+      return;
+    }
+    if (this.environment.isSet(Qt2.QT_COMPILER_CACHE_DIR)) {
+      environment.put(this.tool.dir, this.environment.get(Qt2.QT_COMPILER_CACHE_DIR));
+    }
+    if (this.environment.isSet(Qt2.QT_COMPILER_CACHE_SIZE)) {
+      environment.put(this.tool.size, this.environment.get(Qt2.QT_COMPILER_CACHE_SIZE));
+    }
+  }
+
+  /**
+   * Remembers the current statistics, so that later statistics are relative to them.
+   */
+  public final void start() {
+    this.initial = getStatistics();
+  }
+
+  /**
+   * Get the statistics of the cache, relative to {@link #start()}.
+   */
+  public final Statistics getStatistics() {
+    Statistics statistics = (this.tool == Tool.CCACHE) ? getCCacheStatistics() : getSCCacheStatistics();
+    if ((statistics != null) && (this.initial != null)) {
+      return new Statistics(statistics.hits - this.initial.hits, statistics.misses - this.initial.misses,
+          statistics.bytes);
+    }
+    return statistics;
+  }
+
+  /**
+   * Parses the statistics of ccache. ccache 4 provides machine readable statistics, older versions
+   * only the human readable summary.
+   */
+  private Statistics getCCacheStatistics() {
+    String text = execute("--print-stats");
+    if (text != null) {
+      long hits = 0, misses = 0, bytes = 0;
+      for (String line : text.split("\\r?\\n")) {
+        String[] values = line.trim().split("\\s+");
+        if (values.length == 2) {
+          long value = Long.parseLong(values[1].matches("\\d+") ? values[1] : "0");
+          switch (values[0]) {
+            case "direct_cache_hit":
+            case "preprocessed_cache_hit":
+              hits += value;
+              break;
+            case "cache_miss":
+              misses += value;
+              break;
+            case "cache_size_kibibyte":
+              bytes = value * 1024;
+              break;
+            default:
+          }
+        }
+      }
+      return new Statistics(hits, misses, bytes);
+    }
+
+    text = execute("-s");
+    if (text != null) {
+      long hits = 0, misses = 0;
+      for (String line : text.split("\\r?\\n")) {
+        Matcher matcher = QtCompilerCache.CCACHE_HIT.matcher(line);
+        if (matcher.find()) {
+          hits += Long.parseLong(matcher.group(2));
+        }
+        matcher = QtCompilerCache.CCACHE_MISS.matcher(line);
+        if (matcher.find()) {
+          misses += Long.parseLong(matcher.group(1));
+        }
+      }
+      return new Statistics(hits, misses, -1);
+    }
+    return null;
+  }
+
+  /**
+   * Parses the JSON statistics of sccache.
+   */
+  private Statistics getSCCacheStatistics() {
+    String text = execute("--show-stats", "--stats-format=json");
+    if (text == null) {
+      return null;
+    }
+    try {
+      JsonObject json = Json.createReader(new StringReader(text)).readObject();
+      JsonObject stats = json.getJsonObject("stats");
+      if (stats == null) {
+        return null;
+      }
+      long bytes = (json.get("cache_size") instanceof JsonNumber) ? json.getJsonNumber("cache_size").longValue() : -1;
+      return new Statistics(QtCompilerCache.sum(stats.getJsonObject("cache_hits")),
+          QtCompilerCache.sum(stats.getJsonObject("cache_misses")), bytes);
+    } catch (RuntimeException e) {
+      // A JsonException of an older sccache without JSON statistics, or an unexpected format
+      return null;
+    }
+  }
+
+  /**
+   * Executes the cache tool and returns the output, or <code>null</code> if it failed.
+   *
+   * @param args
+   */
+  private String execute(String... args) {
+    ProcessBuilder builder = new ProcessBuilder(this.binary.getAbsolutePath());
+    builder.command().addAll(Arrays.asList(args));
+    builder.environment().putAll(this.environment.toMap());
+    updateEnvironment(builder.environment());
+    // Warnings on stderr must not be mixed into the statistics
+    builder.redirectError(new File(Qt2.isWindows() ? "NUL" : "/dev/null"));
+    try {
+      Process process = builder.start();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (InputStream stream = process.getInputStream()) {
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = stream.read(buffer)) > 0) {
+          output.write(buffer, 0, length);
+        }
+      }
+      if (!process.waitFor(30, TimeUnit.SECONDS)) {
+        process.destroy();
+        return null;
+      }
+      return (process.exitValue() == 0) ? new String(output.toByteArray(), Charset.defaultCharset()) : null;
+    } catch (IOException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Returns a text representation.
+   */
+  @Override
+  public final String toString() {
+    return isEnabled() ? String.format("%s (%s)", this.tool.name, this.binary)
+        : String.format("%s not found on PATH", this.tool.name);
+  }
+
+  /**
+   * Sums the counts of a sccache statistic.
+   *
+   * @param object
+   */
+  private static long sum(JsonObject object) {
+    long sum = 0;
+    JsonObject counts = (object == null) ? null : object.getJsonObject("counts");
+    if (counts != null) {
+      for (JsonValue value : counts.values()) {
+        sum += (value instanceof JsonNumber) ? ((JsonNumber) value).longValue() : 0;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Find an executable on the PATH.
+   *
+   * @param name
+   * @param environment
+   */
+  private static File findExecutable(String name, Environment environment) {
+    String path = environment.isSet("PATH") ? environment.get("PATH") : System.getenv("PATH");
+    if (path == null) {
+      return null;
+    }
+    for (String dir : path.split(File.pathSeparator)) {
+      for (String file : new String[] { name, name + ".exe" }) {
+        File executable = new File(dir, file);
+        if (executable.isFile() && executable.canExecute()) {
+          return executable;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Constructs an instance of {@link QtCompilerCache}, or <code>null</code> if no compiler cache is
+   * defined.
+   *
+   * @param environment
+   */
+  public static QtCompilerCache of(Environment environment) {
+    String name = environment.get(Qt2.QT_COMPILER_CACHE);
+    for (Tool tool : Tool.values()) {
+      if (tool.name.equalsIgnoreCase((name == null) ? "" : name.trim())) {
+        return new QtCompilerCache(tool, QtCompilerCache.findExecutable(tool.name, environment), environment);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The {@link Statistics} of the compiler cache.
+   */
+  public static class Statistics {
+
+    private final long hits;
+    private final long misses;
+    private final long bytes;
+
+    /**
+     * Constructs an instance of {@link Statistics}.
+     *
+     * @param hits
+     * @param misses
+     * @param bytes
+     */
+    private Statistics(long hits, long misses, long bytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Returns a text representation.
+     */
+    @Override
+    public final String toString() {
+      long total = this.hits + this.misses;
+      String rate = (total == 0) ? "-" : String.format("%.1f%%", (100.0 * this.hits) / total);
+      String size = (this.bytes < 0) ? "unknown" : String.format("%.1f MiB", this.bytes / (1024.0 * 1024.0));
+      return String.format("%d hits, %d misses (hit rate %s), cache size %s", this.hits, this.misses, rate, size);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import info.tol.gocd.task.util.TaskRequest;
+
+/**
+ * The {@link QtContext} defines where a single build runs. The main build runs qmake and make in
+ * the working directory. A derived build, e.g. for a single Android ABI, has its own directory, a
+ * name for the console and its own environment. Concurrent builds share the make jobs. A test may
+ * have additional arguments, e.g. for its output file.
+ */
+public class QtContext {
+
+  private final TaskRequest  request;
+  private final File         directory;
+  private final String       name;
+  private final int          builds;
+  private final List<String> arguments;
+
+  /**
+   * Constructs an instance of {@link QtContext}.
+   *
+   * @param request
+   * @param directory
+   * @param name
+   * @param builds
+   * @param arguments
+   */
+  private QtContext(TaskRequest request, File directory, String name, int builds, List<String> arguments) {
+    this.request = request;
+    this.directory = directory.getAbsoluteFile();
+    this.name = name;
+    this.builds = Math.max(1, builds);
+    this.arguments = Collections.unmodifiableList(new ArrayList<>(arguments));
+  }
+
+  /**
+   * Get the task request, with the environment of this build.
+   */
+  public final TaskRequest getRequest() {
+    return this.request;
+  }
+
+  /**
+   * Get the directory in which qmake and make are executed.
+   */
+  public final File getDirectory() {
+    return this.directory;
+  }
+
+  /**
+   * Get the name of a derived build, or <code>null</code> for the main build.
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Get the number of concurrent builds, which share the make jobs.
+   */
+  public final int getBuilds() {
+    return this.builds;
+  }
+
+  /**
+   * Get the additional arguments of the command.
+   */
+  public final List<String> getArguments() {
+    return this.arguments;
+  }
+
+  /**
+   * Returns <code>true</code> if the build runs outside of the working directory.
+   */
+  public final boolean isShadowBuild() {
+    return !this.directory.equals(new File(this.request.getWorkingDirectory()).getAbsoluteFile());
+  }
+
+  /**
+   * Derives a named build with its own directory and environment.
+   *
+   * @param name
+   * @param directory
+   * @param params
+   * @param builds
+   */
+  public final QtContext derive(String name, File directory, Map<String, String> params, int builds) {
+    String label = (this.name == null) ? name : this.name + "/" + name;
+    return new QtContext(this.request.clone(params), directory, label, this.builds * builds, this.arguments);
+  }
+
+  /**
+   * Creates a copy of this build with additional arguments for the command.
+   *
+   * @param arguments
+   */
+  public final QtContext withArguments(List<String> arguments) {
+    return new QtContext(this.request, this.directory, this.name, this.builds, arguments);
+  }
+
+  /**
+   * Constructs the main {@link QtContext} of a task.
+   *
+   * @param request
+   */
+  public static QtContext of(TaskRequest request) {
+    return new QtContext(request, new File(request.getWorkingDirectory()), null, 1, Collections.emptyList());
+  }
+}
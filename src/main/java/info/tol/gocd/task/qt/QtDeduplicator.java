@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import info.tol.gocd.util.FileTree;
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtDeduplicator} replaces identical files in the <code>data</code> directories of the
+ * packages by hard links, e.g. the Qt libraries or QML modules shipped by several components. Only
+ * files of the same size are hashed, concurrently. The hash of a file is kept in a cache by its
+ * path and is reused while its size, modification time and inode are unchanged.
+ *
+ * Files with different permissions are not linked, as linked files share their attributes.
+ */
+public class QtDeduplicator {
+
+  private final Path       packages;
+  private final Path       cache;
+
+  private int              linked;
+  private long             saved;
+
+  /**
+   * Constructs an instance of {@link QtDeduplicator}.
+   *
+   * @param packages
+   * @param cache
+   */
+  private QtDeduplicator(Path packages, Path cache) {
+    this.packages = packages;
+    this.cache = cache;
+  }
+
+  /**
+   * Get the number of files replaced by a link.
+   */
+  public final int getLinked() {
+    return this.linked;
+  }
+
+  /**
+   * Get the bytes saved by the links.
+   */
+  public final long getSaved() {
+    return this.saved;
+  }
+
+  /**
+   * Replaces the identical files of the packages by hard links. Returns the number of files that
+   * have been compared.
+   */
+  public final int deduplicate() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (Stream<Path> stream = Files.list(this.packages)) {
+      for (Path directory : stream.sorted().collect(Collectors.toList())) {
+        files.addAll(FileTree.list(directory.resolve("data"), Collections.emptyList()));
+      }
+    }
+
+    // Only files with the same size can be identical
+    Map<Long, List<Path>> bySize = new TreeMap<>();
+    for (Path file : files) {
+      long size = Files.size(file);
+      if (size > 0) {
+        bySize.computeIfAbsent(size, k -> new ArrayList<>()).add(file);
+      }
+    }
+    List<Path> candidates = bySize.values().stream().filter(l -> l.size() > 1).flatMap(List::stream)
+        .collect(Collectors.toList());
+
+    Properties previous = load();
+    Properties current = new Properties();
+    Map<String, List<Path>> byHash;
+    try {
+      byHash = candidates.parallelStream().collect(Collectors.groupingByConcurrent(
+          f -> QtDeduplicator.hashUnchecked(f, previous, current), Collectors.toList()));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    for (List<Path> identical : byHash.values()) {
+      Collections.sort(identical);
+      Path original = identical.get(0);
+      BasicFileAttributes attrs = Files.readAttributes(original, BasicFileAttributes.class);
+      for (Path file : identical.subList(1, identical.size())) {
+        if (link(original, attrs, file)) {
+          current.setProperty(file.toString(), current.getProperty(original.toString()));
+        }
+      }
+    }
+    store(current);
+    return candidates.size();
+  }
+
+  /**
+   * Replaces a file by a link to the original. The file is replaced atomically, so it is never
+   * missing.
+   *
+   * @param original
+   * @param attrs
+   * @param file
+   */
+  private boolean link(Path original, BasicFileAttributes attrs, Path file) throws IOException {
+    BasicFileAttributes other = Files.readAttributes(file, BasicFileAttributes.class);
+    boolean same = (attrs.fileKey() != null) && attrs.fileKey().equals(other.fileKey());
+    if (same || !QtDeduplicator.getPermissions(original).equals(QtDeduplicator.getPermissions(file))) {
+      return false;
+    }
+
+    Path temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      Files.createLink(temp, original);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | UnsupportedOperationException e) {
+      // The file is kept, e.g. on a different file system
+      Files.deleteIfExists(temp);
+      return false;
+    }
+    this.linked++;
+    this.saved += other.size();
+    return true;
+  }
+
+  /**
+   * Loads the cache of the hashes.
+   */
+  private Properties load() {
+    Properties properties = new Properties();
+    if (Files.isRegularFile(this.cache)) {
+      try (InputStream stream = Files.newInputStream(this.cache)) {
+        properties.load(stream);
+      } catch (IOException e) {
+        // The files are hashed again
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * Stores the cache of the hashes.
+   *
+   * @param properties
+   */
+  private void store(Properties properties) throws IOException {
+    Path temp = this.cache.resolveSibling(this.cache.getFileName() + ".tmp");
+    Files.createDirectories(this.cache.getParent());
+    try (OutputStream stream = Files.newOutputStream(temp)) {
+      properties.store(stream, "Hashes of " + this.packages.getFileName());
+    }
+    Files.move(temp, this.cache, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Get the permissions of a file, or an empty text if the file system has none.
+   *
+   * @param file
+   */
+  private static String getPermissions(Path file) throws IOException {
+    try {
+      return PosixFilePermissions.toString(Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS));
+    } catch (UnsupportedOperationException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Hashes a file, or reuses the cached hash. The hash is added to the current cache.
+   *
+   * @param file
+   * @param previous
+   * @param current
+   */
+  private static String hash(Path file, Properties previous, Properties current) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    String stamp = attrs.size() + "," + attrs.lastModifiedTime().toMillis() + "," + attrs.fileKey() + ",";
+    String entry = previous.getProperty(file.toString());
+    if ((entry == null) || !entry.startsWith(stamp)) {
+      entry = stamp + Hash.of(file);
+    }
+    synchronized (current) {
+      current.setProperty(file.toString(), entry);
+    }
+    return entry.substring(stamp.length());
+  }
+
+  /**
+   * Hashes a file within a stream.
+   *
+   * @param file
+   * @param previous
+   * @param current
+   */
+  private static String hashUnchecked(Path file, Properties previous, Properties current) {
+    try {
+      return QtDeduplicator.hash(file, previous, current);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Constructs an instance of {@link QtDeduplicator}.
+   *
+   * @param packages
+   * @param cache
+   */
+  public static QtDeduplicator of(Path packages, Path cache) {
+    return new QtDeduplicator(packages, cache);
+  }
+}
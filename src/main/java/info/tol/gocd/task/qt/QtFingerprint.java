@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtFingerprint} identifies the configuration of a qmake run. It covers the project
+ * qmake is run on, as passed to qmake, the project files (.pro, .pri, .prf and .qmake.conf), the
+ * spec, the CONFIG list and further qmake arguments, the Android ABIs and the qmake binary. qmake has to run again only if the fingerprint has
+ * changed, or the Makefile is missing. The fingerprint of a shadow build is stored in its Makefile
+ * directory.
+ */
+public class QtFingerprint {
+
+  private static final String MAKEFILE = "Makefile";
+
+
+  private final Path   file;
+  private final Path   makefile;
+  private final String value;
+
+  /**
+   * Constructs an instance of {@link QtFingerprint}.
+   *
+   * @param file
+   * @param makefile
+   * @param value
+   */
+  private QtFingerprint(Path file, Path makefile, String value) {
+    this.file = file;
+    this.makefile = makefile;
+    this.value = value;
+  }
+
+  /**
+   * Get the fingerprint value.
+   */
+  public final String getValue() {
+    return this.value;
+  }
+
+  /**
+   * Returns <code>true</code> if the stored fingerprint matches and the Makefile exists.
+   */
+  public final boolean isUnchanged() throws IOException {
+    if (!Files.isRegularFile(this.file) || !Files.isRegularFile(this.makefile)) {
+      return false;
+    }
+    return this.value.equals(new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8).trim());
+  }
+
+  /**
+   * Stores the fingerprint after a successful qmake run.
+   */
+  public final void store() throws IOException {
+    Files.createDirectories(this.file.getParent());
+    Files.write(this.file, this.value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Removes the stored fingerprint, e.g. if qmake failed.
+   */
+  public final void clear() throws IOException {
+    Files.deleteIfExists(this.file);
+  }
+
+  /**
+   * Returns a short text representation.
+   */
+  @Override
+  public final String toString() {
+    return this.value.substring(0, 12);
+  }
+
+  /**
+   * Calculates the {@link QtFingerprint} for a project.
+   *
+   * @param workingDir
+   * @param makeDir
+   * @param project
+   * @param shadowBuild
+   * @param spec
+   * @param arguments
+   * @param abis
+   * @param qmake
+   */
+  public static QtFingerprint of(Path workingDir, Path makeDir, String project, boolean shadowBuild, String spec,
+      List<String> arguments, String abis, File qmake) throws IOException {
+    Path buildDir = workingDir.resolve("build");
+    Hash hash = Hash.sha256();
+    // The project in the same form, as it is passed to qmake
+    hash.update(shadowBuild ? new File(workingDir.toFile(), project).getAbsolutePath() : project);
+    hash.update(String.valueOf(shadowBuild));
+    hash.update(spec).update(String.join(",", arguments)).update(abis);
+
+    hash.update(qmake.getAbsolutePath());
+    for (File binary : new File[] { qmake, new File(qmake.getPath() + ".exe") }) {
+      if (binary.isFile()) {
+        hash.update(binary.length() + ":" + binary.lastModified());
+      }
+    }
+
+    for (Path path : QtFingerprint.getProjectFiles(workingDir, buildDir)) {
+      hash.update(workingDir.relativize(path).toString()).update(path);
+    }
+
+    Path file = makeDir.equals(workingDir) ? buildDir.resolve(".qmake-" + spec + ".sha256")
+        : makeDir.resolve(".qmake.sha256");
+    return new QtFingerprint(file, makeDir.resolve(QtFingerprint.MAKEFILE), hash.toHex());
+  }
+
+  /**
+   * Get the sorted project files, without the build directory and hidden directories.
+   *
+   * @param workingDir
+   * @param buildDir
+   */
+  private static List<Path> getProjectFiles(Path workingDir, Path buildDir) throws IOException {
+    List<Path> files = new ArrayList<>();
+    Files.walkFileTree(workingDir, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        boolean hidden = !dir.equals(workingDir) && dir.getFileName().toString().startsWith(".");
+        return (hidden || dir.equals(buildDir)) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".pro") || name.endsWith(".pri") || name.endsWith(".prf") || name.equals(".qmake.conf")) {
+          files.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(files);
+    return files;
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import info.tol.gocd.util.Environment;
+import info.tol.gocd.util.ProcessMonitor;
+
+/**
+ * The {@link QtHistory} keeps the timings of the build steps in an append-only file, one line per
+ * step with the pipeline, the stage and the name of the step. The timings of a build are compared
+ * with the rolling median of the previous builds, to find steps that became slower.
+ */
+public class QtHistory {
+
+  private static final String FILE     = ".gocd-qt-history.tsv";
+  private static final int    WINDOW   = 10;
+  private static final int    SAMPLES  = 3;
+  private static final long   MINIMUM  = 1000;
+
+  private final Path          file;
+  private final String        pipeline;
+  private final String        stage;
+  private final String        counter;
+  private final int           warn;
+  private final int           fail;
+
+  private final List<String>  failures = new ArrayList<>();
+
+  /**
+   * Constructs an instance of {@link QtHistory}.
+   *
+   * @param file
+   * @param pipeline
+   * @param stage
+   * @param counter
+   * @param warn
+   * @param fail
+   */
+  private QtHistory(Path file, String pipeline, String stage, String counter, int warn, int fail) {
+    this.file = file;
+    this.pipeline = pipeline;
+    this.stage = stage;
+    this.counter = counter;
+    this.warn = warn;
+    this.fail = fail;
+  }
+
+  /**
+   * Get the steps, which exceeded the slowdown threshold for a failure.
+   */
+  public final List<String> getFailures() {
+    return this.failures;
+  }
+
+  /**
+   * Compares the steps with the rolling median of the previous builds and returns the lines for
+   * the console. A step is only compared if it has enough previous timings and the median is not
+   * too short to be meaningful.
+   *
+   * @param steps
+   */
+  public final List<String> compare(List<ProcessMonitor.Step> steps) throws IOException {
+    Map<String, Deque<Long>> history = read();
+    List<String> lines = new ArrayList<>();
+    for (ProcessMonitor.Step step : steps) {
+      String cpu = (step.getCpuTime() < 0) ? "n/a" : QtHistory.toSeconds(step.getCpuTime());
+      String line = String.format("Timing %s: wall %s, cpu %s", step.getName(),
+          QtHistory.toSeconds(step.getWallTime()), cpu);
+
+      Deque<Long> previous = history.getOrDefault(step.getName(), new ArrayDeque<>());
+      if (previous.size() >= QtHistory.SAMPLES) {
+        long median = QtHistory.median(previous);
+        if (median >= QtHistory.MINIMUM) {
+          long change = (step.getWallTime() - median) * 100 / median;
+          line += String.format(", median %s (%+d%%)", QtHistory.toSeconds(median), change);
+          if ((this.fail > 0) && (change > this.fail)) {
+            line += " FAILED: slower than " + this.fail + "%";
+            this.failures.add(step.getName());
+          } else if ((this.warn > 0) && (change > this.warn)) {
+            line += " WARNING: slower than " + this.warn + "%";
+          }
+        }
+      }
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  /**
+   * Appends the timings of the steps to the history.
+   *
+   * @param steps
+   */
+  public final void append(List<ProcessMonitor.Step> steps) throws IOException {
+    StringBuilder text = new StringBuilder();
+    long time = System.currentTimeMillis();
+    for (ProcessMonitor.Step step : steps) {
+      text.append(String.join("\t", String.valueOf(time), this.pipeline, this.stage, this.counter,
+          QtHistory.escape(step.getName()), String.valueOf(step.getWallTime()), String.valueOf(step.getCpuTime())));
+      text.append('\n');
+    }
+
+    Files.createDirectories(this.file.toAbsolutePath().getParent());
+    // Several agents may share the history file
+    try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND)) {
+      FileLock lock = channel.lock();
+      try {
+        channel.write(StandardCharsets.UTF_8.encode(text.toString()));
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  /**
+   * Reads the last wall-clock times of the steps of this pipeline and stage.
+   */
+  private Map<String, Deque<Long>> read() throws IOException {
+    Map<String, Deque<Long>> history = new HashMap<>();
+    if (!Files.isRegularFile(this.file)) {
+      return history;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if ((fields.length < 7) || !this.pipeline.equals(fields[1]) || !this.stage.equals(fields[2])) {
+          continue;
+        }
+        try {
+          Deque<Long> times = history.computeIfAbsent(fields[4], n -> new ArrayDeque<>());
+          times.addLast(Long.parseLong(fields[5]));
+          if (times.size() > QtHistory.WINDOW) {
+            times.removeFirst();
+          }
+        } catch (NumberFormatException e) {
+          // ignore broken lines
+        }
+      }
+    }
+    return history;
+  }
+
+  /**
+   * Get the median of the times.
+   *
+   * @param times
+   */
+  private static long median(Deque<Long> times) {
+    List<Long> sorted = new ArrayList<>(times);
+    Collections.sort(sorted);
+    int middle = sorted.size() / 2;
+    return (sorted.size() % 2 == 1) ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+  }
+
+  /**
+   * Formats milliseconds as seconds.
+   *
+   * @param millis
+   */
+  private static String toSeconds(long millis) {
+    return String.format(Locale.ROOT, "%.1fs", millis / 1000.0);
+  }
+
+  /**
+   * Removes the separators of the history file from a name.
+   *
+   * @param name
+   */
+  private static String escape(String name) {
+    return (name == null) ? "" : name.replaceAll("[\\t\\r\\n]", " ");
+  }
+
+  /**
+   * Constructs an instance of {@link QtHistory}. The history file is defined by
+   * {@link Qt2#QT_HISTORY}, or is kept in the home directory of the agent.
+   *
+   * @param environment
+   */
+  public static QtHistory of(Environment environment) {
+    String path = environment.get(Qt2.QT_HISTORY);
+    Path file = ((path == null) || path.trim().isEmpty())
+        ? Paths.get(System.getProperty("user.home"), QtHistory.FILE) : Paths.get(path.trim());
+    return new QtHistory(file, QtHistory.escape(environment.get("GO_PIPELINE_NAME")),
+        QtHistory.escape(environment.get("GO_STAGE_NAME")), QtHistory.escape(environment.get("GO_PIPELINE_COUNTER")),
+        QtHistory.toPercent(environment.get(Qt2.QT_TIMING_WARN), 50),
+        QtHistory.toPercent(environment.get(Qt2.QT_TIMING_FAIL), 0));
+  }
+
+  /**
+   * Parses a percentage, e.g. "50" or "50%".
+   *
+   * @param value
+   * @param defaultValue
+   */
+  private static int toPercent(String value, int defaultValue) {
+    try {
+      return (value == null) || value.trim().isEmpty() ? defaultValue
+          : Integer.parseInt(value.trim().replace("%", ""));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.util.regex.Pattern;
+
+import info.tol.gocd.util.Environment;
+import info.tol.gocd.util.Host;
+
+/**
+ * The {@link QtJobs} defines the number of parallel jobs of the make tool. The number of jobs is
+ * calculated from the available processors, the CPU quota of the cgroup and the available memory,
+ * unless it is defined by {@link Qt2#QT_MAKE_JOBS}.
+ */
+public class QtJobs {
+
+  private static final long    MEGABYTE       = 1024 * 1024;
+  private static final long    MEMORY_PER_JOB = 1024;
+
+  private static final String  MAKEFLAGS      = "MAKEFLAGS";
+  private static final Pattern MAKEFLAGS_JOBS = Pattern.compile("(^|\\s)(-j|--jobs|--jobserver|[a-zA-Z]*j[0-9]*($|\\s))");
+
+
+  private final int     jobs;
+  private final String  reason;
+  private final boolean makeflags;
+
+  /**
+   * Constructs an instance of {@link QtJobs}.
+   *
+   * @param jobs
+   * @param reason
+   * @param makeflags
+   */
+  private QtJobs(int jobs, String reason, boolean makeflags) {
+    this.jobs = Math.max(1, jobs);
+    this.reason = reason;
+    this.makeflags = makeflags;
+  }
+
+  /**
+   * Get the number of jobs.
+   */
+  public final int getJobs() {
+    return this.jobs;
+  }
+
+  /**
+   * Get the reason for the number of jobs.
+   */
+  public final String getReason() {
+    return this.reason;
+  }
+
+  /**
+   * Shares the jobs between concurrent builds.
+   *
+   * @param builds
+   */
+  public final QtJobs share(int builds) {
+    if (builds <= 1) {
+      return this;
+    }
+    return new QtJobs(this.jobs / builds, String.format("%s, shared by %d builds", this.reason, builds),
+        this.makeflags);
+  }
+
+  /**
+   * Returns the arguments for the make tool, or <code>null</code> if the number of jobs is defined
+   * by MAKEFLAGS.
+   */
+  public final String getArgument() {
+    return this.makeflags ? null : "-j" + this.jobs;
+  }
+
+  /**
+   * Returns a text representation.
+   */
+  @Override
+  public final String toString() {
+    return this.makeflags ? this.reason : String.format("%d jobs (%s)", this.jobs, this.reason);
+  }
+
+  /**
+   * Calculates the number of jobs for the {@link Environment}.
+   *
+   * @param environment
+   */
+  public static QtJobs of(Environment environment) {
+    String value = environment.get(Qt2.QT_MAKE_JOBS);
+    if ((value != null) && !value.trim().isEmpty()) {
+      try {
+        return new QtJobs(Integer.parseInt(value.trim()), "defined by " + Qt2.QT_MAKE_JOBS, false);
+      } catch (NumberFormatException e) {}
+    }
+
+    String makeflags = environment.get(QtJobs.MAKEFLAGS);
+    if ((makeflags != null) && QtJobs.MAKEFLAGS_JOBS.matcher(makeflags).find()) {
+      return new QtJobs(1, "defined by " + QtJobs.MAKEFLAGS, true);
+    }
+
+    int processors = Host.getProcessors();
+    int jobs = processors;
+    String reason = String.format("%d processors", processors);
+
+    double quota = Host.getCpuQuota();
+    if ((quota > 0) && (Math.ceil(quota) < jobs)) {
+      jobs = (int) Math.ceil(quota);
+      reason = String.format("limited by CPU quota of %.1f processors", quota);
+    }
+
+    long perJob = QtJobs.MEMORY_PER_JOB;
+    try {
+      String memory = environment.get(Qt2.QT_MAKE_JOB_MEMORY);
+      perJob = (memory == null) ? perJob : Math.max(1, Long.parseLong(memory.trim()));
+    } catch (NumberFormatException e) {}
+
+    long available = Host.getAvailableMemory();
+    if ((available > 0) && (available / (perJob * QtJobs.MEGABYTE) < jobs)) {
+      jobs = (int) (available / (perJob * QtJobs.MEGABYTE));
+      reason = String.format("limited by %d MiB available memory, %d MiB per job", available / QtJobs.MEGABYTE,
+          perJob);
+    }
+    return new QtJobs(jobs, reason, false);
+  }
+}
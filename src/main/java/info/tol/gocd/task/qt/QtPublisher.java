@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import info.tol.gocd.util.FileTree;
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtPublisher} synchronizes the generated repository with its publish location. Only
+ * the files, whose checksums differ, are copied. The <code>Updates.xml</code> files are replaced
+ * last, so that clients never see metadata referring to archives that are not yet published.
+ * Afterwards the files, that no longer exist in the repository, are deleted.
+ *
+ * Each file is copied to a temporary file and moved into place atomically. The checksums of the
+ * repository and the published files are cached with their size and modification time, so
+ * unchanged files are not read again. A repository without <code>Updates.xml</code> is never
+ * published, so a missing build can't delete a published release.
+ */
+public class QtPublisher {
+
+  private static final String UPDATES = "Updates.xml";
+  private static final String TARGET  = "target";
+  private static final String FILE    = "file.";
+  private static final String SOURCE  = "source.";
+
+
+  private final Path          source;
+  private final Path          target;
+  private final Path          cache;
+
+  private int                 copied;
+  private int                 deleted;
+  private final AtomicLong    bytes   = new AtomicLong();
+
+  /**
+   * Constructs an instance of {@link QtPublisher}.
+   *
+   * @param source
+   * @param target
+   * @param cache
+   */
+  private QtPublisher(Path source, Path target, Path cache) {
+    this.source = source;
+    this.target = target;
+    this.cache = cache;
+  }
+
+  /**
+   * Get the number of copied files.
+   */
+  public final int getCopied() {
+    return this.copied;
+  }
+
+  /**
+   * Get the number of deleted files.
+   */
+  public final int getDeleted() {
+    return this.deleted;
+  }
+
+  /**
+   * Get the bytes of the copied files.
+   */
+  public final long getBytes() {
+    return this.bytes.get();
+  }
+
+  /**
+   * Publishes the repository. Returns the number of files of the repository.
+   */
+  public final int publish() throws IOException {
+    if (!Files.isRegularFile(this.source.resolve(QtPublisher.UPDATES))) {
+      throw new IOException("No repository to publish in " + this.source);
+    }
+
+    Properties previous = load();
+    Properties current = new Properties();
+    current.setProperty(QtPublisher.TARGET, this.target.toString());
+
+    List<String> files = FileTree.list(this.source, Collections.emptyList()).stream()
+        .map(f -> this.source.relativize(f).toString().replace('\\', '/')).collect(Collectors.toList());
+    // The stale files are never deleted for an empty repository
+    if (files.isEmpty()) {
+      throw new IOException("No files to publish in " + this.source);
+    }
+
+    // Each file of the repository is hashed at most once
+    Map<String, String> hashes = new ConcurrentHashMap<>();
+    List<String> changed;
+    try {
+      files.parallelStream().forEach(f -> hashes.put(f, getHashUnchecked(f, previous, current)));
+      changed = files.parallelStream().filter(f -> isChangedUnchecked(f, hashes.get(f), previous, current))
+          .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    // The metadata is replaced after the archives it refers to, the deepest first
+    List<String> updates = changed.stream().filter(QtPublisher::isUpdates)
+        .sorted(Comparator.comparing((String f) -> f.split("/").length).reversed()).collect(Collectors.toList());
+    changed.removeAll(updates);
+    try {
+      changed.parallelStream().forEach(f -> copyUnchecked(f, hashes.get(f), current));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    for (String file : updates) {
+      copy(file, hashes.get(file), current);
+    }
+    this.copied = changed.size() + updates.size();
+
+    // Delete the files, that no longer exist in the repository
+    Set<String> published = new TreeSet<>(files);
+    List<Path> stale = new ArrayList<>();
+    for (Path file : FileTree.list(this.target, Collections.emptyList())) {
+      if (!published.contains(this.target.relativize(file).toString().replace('\\', '/'))) {
+        stale.add(file);
+      }
+    }
+    for (Path file : stale) {
+      Files.delete(file);
+      deleteEmpty(file.getParent());
+    }
+    this.deleted = stale.size();
+
+    store(current);
+    return files.size();
+  }
+
+  /**
+   * Get the checksum of a file of the repository, or reuses the cached checksum while its size and
+   * modification time are unchanged.
+   *
+   * @param file
+   * @param previous
+   * @param current
+   */
+  private String getHash(String file, Properties previous, Properties current) throws IOException {
+    Path path = this.source.resolve(file);
+    String stamp = QtPublisher.getStamp(path);
+    String entry = previous.getProperty(QtPublisher.SOURCE + file);
+    if ((entry == null) || !entry.startsWith(stamp)) {
+      entry = stamp + Hash.of(path);
+    }
+    synchronized (current) {
+      current.setProperty(QtPublisher.SOURCE + file, entry);
+    }
+    return entry.substring(stamp.length());
+  }
+
+  /**
+   * Get the checksum of a file within a stream.
+   *
+   * @param file
+   * @param previous
+   * @param current
+   */
+  private String getHashUnchecked(String file, Properties previous, Properties current) {
+    try {
+      return getHash(file, previous, current);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the published file differs from the file of the repository.
+   *
+   * @param file
+   * @param hash
+   * @param previous
+   * @param current
+   */
+  private boolean isChanged(String file, String hash, Properties previous, Properties current) throws IOException {
+    Path path = this.target.resolve(file);
+    if (!Files.isRegularFile(path) || (Files.size(path) != Files.size(this.source.resolve(file)))) {
+      return true;
+    }
+
+    String stamp = QtPublisher.getStamp(path);
+    String entry = previous.getProperty(QtPublisher.FILE + file);
+    if ((entry == null) || !entry.startsWith(stamp)) {
+      entry = stamp + Hash.of(path);
+    }
+    if (!entry.substring(stamp.length()).equals(hash)) {
+      return true;
+    }
+    synchronized (current) {
+      current.setProperty(QtPublisher.FILE + file, entry);
+    }
+    return false;
+  }
+
+  /**
+   * Checks a file within a stream.
+   *
+   * @param file
+   * @param hash
+   * @param previous
+   * @param current
+   */
+  private boolean isChangedUnchecked(String file, String hash, Properties previous, Properties current) {
+    try {
+      return isChanged(file, hash, previous, current);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copies a file to a temporary file beside the target, and moves it into place atomically.
+   *
+   * @param file
+   * @param hash
+   * @param current
+   */
+  private void copy(String file, String hash, Properties current) throws IOException {
+    Path path = this.target.resolve(file);
+    Path temp = path.resolveSibling("." + path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    Files.createDirectories(path.getParent());
+    try {
+      Files.copy(this.source.resolve(file), temp, StandardCopyOption.COPY_ATTRIBUTES);
+      try {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    this.bytes.addAndGet(Files.size(path));
+
+    String entry = QtPublisher.getStamp(path) + hash;
+    synchronized (current) {
+      current.setProperty(QtPublisher.FILE + file, entry);
+    }
+  }
+
+  /**
+   * Copies a file within a stream.
+   *
+   * @param file
+   * @param hash
+   * @param current
+   */
+  private void copyUnchecked(String file, String hash, Properties current) {
+    try {
+      copy(file, hash, current);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Deletes the empty directories up to the publish location.
+   *
+   * @param directory
+   */
+  private void deleteEmpty(Path directory) throws IOException {
+    Path path = directory;
+    while (!path.equals(this.target) && path.startsWith(this.target)) {
+      try {
+        Files.delete(path);
+      } catch (DirectoryNotEmptyException e) {
+        return;
+      }
+      path = path.getParent();
+    }
+  }
+
+  /**
+   * Loads the cached checksums of the publish location.
+   */
+  private Properties load() {
+    Properties properties = new Properties();
+    if (Files.isRegularFile(this.cache)) {
+      try (InputStream stream = Files.newInputStream(this.cache)) {
+        properties.load(stream);
+      } catch (IOException e) {
+        // The published files are read again
+      }
+    }
+    // The checksums are only valid for the same publish location
+    return this.target.toString().equals(properties.getProperty(QtPublisher.TARGET)) ? properties : new Properties();
+  }
+
+  /**
+   * Stores the cached checksums of the publish location.
+   *
+   * @param properties
+   */
+  private void store(Properties properties) throws IOException {
+    Path temp = this.cache.resolveSibling(this.cache.getFileName() + ".tmp");
+    Files.createDirectories(this.cache.getParent());
+    try (OutputStream stream = Files.newOutputStream(temp)) {
+      properties.store(stream, "Published " + this.target);
+    }
+    Files.move(temp, this.cache, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Returns <code>true</code> if the file is the metadata of a repository.
+   *
+   * @param file
+   */
+  private static boolean isUpdates(String file) {
+    return file.equals(QtPublisher.UPDATES) || file.endsWith("/" + QtPublisher.UPDATES);
+  }
+
+  /**
+   * Get the size and modification time of a file.
+   *
+   * @param path
+   */
+  private static String getStamp(Path path) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    return attrs.size() + "," + attrs.lastModifiedTime().toMillis() + ",";
+  }
+
+  /**
+   * Constructs an instance of {@link QtPublisher}. The checksums of the published files are cached
+   * beside the repository, e.g. <code>build/repository.published</code>.
+   *
+   * @param source
+   * @param target
+   */
+  public static QtPublisher of(Path source, Path target) {
+    return new QtPublisher(source, target, source.resolveSibling(source.getFileName() + ".published"));
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import info.tol.gocd.util.FileTree;
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtRepoManifest} keeps the hashes of the packages, that have been published to the
+ * repository. A package is hashed by the files of its <code>meta</code> and <code>data</code>
+ * directories. The hash of a file is reused while its size and modification time are unchanged,
+ * so only modified files are read again.
+ *
+ * The manifest is stored beside the repository, e.g. <code>build/repository.manifest</code>.
+ */
+public class QtRepoManifest {
+
+  private static final String           SUFFIX   = ".manifest";
+  private static final List<String>     TREES    = Arrays.asList("meta", "data");
+  private static final List<String>     DEPENDS  = Arrays.asList("Dependencies", "AutoDependOn");
+
+  private static final String           PACKAGE  = "package.";
+  private static final String           FILE     = "file.";
+
+
+  private final Path                    repository;
+  private final Path                    manifest;
+  private final Properties              previous;
+  private final Properties              current;
+  private final Map<String, Set<String>> dependencies;
+
+  /**
+   * Constructs an instance of {@link QtRepoManifest}.
+   *
+   * @param repository
+   * @param manifest
+   * @param previous
+   * @param current
+   * @param dependencies
+   */
+  private QtRepoManifest(Path repository, Path manifest, Properties previous, Properties current,
+      Map<String, Set<String>> dependencies) {
+    this.repository = repository;
+    this.manifest = manifest;
+    this.previous = previous;
+    this.current = current;
+    this.dependencies = dependencies;
+  }
+
+  /**
+   * Get the packages.
+   */
+  public final Set<String> getPackages() {
+    return this.dependencies.keySet();
+  }
+
+  /**
+   * Get the changed packages and the packages depending on them. Returns <code>null</code>, if the
+   * complete repository has to be built, because there is no repository or manifest yet or a
+   * package has been removed.
+   */
+  public final Set<String> getChanged() {
+    Set<String> known = QtRepoManifest.getPackages(this.previous);
+    if (!Files.isDirectory(this.repository) || known.isEmpty() || !getPackages().containsAll(known)) {
+      return null;
+    }
+
+    Set<String> changed = new TreeSet<>();
+    for (String name : getPackages()) {
+      String hash = this.current.getProperty(QtRepoManifest.PACKAGE + name);
+      if (!hash.equals(this.previous.getProperty(QtRepoManifest.PACKAGE + name))) {
+        changed.add(name);
+      }
+    }
+
+    // Add the dependents of the changed packages
+    Map<String, Set<String>> dependents = new HashMap<>();
+    this.dependencies.forEach((n, d) -> d.forEach(p -> dependents.computeIfAbsent(p, k -> new HashSet<>()).add(n)));
+    Deque<String> queue = new ArrayDeque<>(changed);
+    while (!queue.isEmpty()) {
+      for (String dependent : dependents.getOrDefault(queue.poll(), Collections.emptySet())) {
+        if (changed.add(dependent)) {
+          queue.add(dependent);
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Stores the manifest, after the repository has been built successfully.
+   */
+  public final void store() throws IOException {
+    Path temp = this.manifest.resolveSibling(this.manifest.getFileName() + ".tmp");
+    Files.createDirectories(this.manifest.getParent());
+    try (OutputStream stream = Files.newOutputStream(temp)) {
+      this.current.store(stream, "Packages of " + this.repository.getFileName());
+    }
+    Files.move(temp, this.manifest, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Get the names of the packages of a manifest.
+   *
+   * @param properties
+   */
+  private static Set<String> getPackages(Properties properties) {
+    return properties.stringPropertyNames().stream().filter(n -> n.startsWith(QtRepoManifest.PACKAGE))
+        .map(n -> n.substring(QtRepoManifest.PACKAGE.length())).collect(Collectors.toSet());
+  }
+
+  /**
+   * Hashes a package. The hashes of the files are added to the current manifest.
+   *
+   * @param directory
+   * @param previous
+   * @param current
+   */
+  private static String hash(Path directory, Properties previous, Properties current) throws IOException {
+    String name = directory.getFileName().toString();
+    Hash hash = Hash.sha256();
+    for (String tree : QtRepoManifest.TREES) {
+      Path root = directory.resolve(tree);
+      for (Path file : FileTree.list(root, Collections.emptyList())) {
+        String relative = directory.relativize(file).toString().replace('\\', '/');
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        String stamp = attrs.size() + "," + attrs.lastModifiedTime().toMillis() + ",";
+
+        String key = QtRepoManifest.FILE + name + "/" + relative;
+        String entry = previous.getProperty(key);
+        if ((entry == null) || !entry.startsWith(stamp)) {
+          entry = stamp + Hash.of(file);
+        }
+        current.setProperty(key, entry);
+        hash.update(relative).update(entry.substring(stamp.length()));
+      }
+    }
+    return hash.toHex();
+  }
+
+  /**
+   * Reads the dependencies of a package from its <code>meta/package.xml</code>.
+   *
+   * @param directory
+   */
+  private static Set<String> getDependencies(Path directory) throws IOException {
+    Set<String> dependencies = new TreeSet<>();
+    Path file = directory.resolve("meta").resolve("package.xml");
+    if (!Files.isRegularFile(file)) {
+      return dependencies;
+    }
+
+    try (InputStream stream = Files.newInputStream(file)) {
+      XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(stream);
+      try {
+        while (reader.hasNext()) {
+          if ((reader.next() == XMLStreamConstants.START_ELEMENT)
+              && QtRepoManifest.DEPENDS.contains(reader.getLocalName())) {
+            for (String dependency : reader.getElementText().split(",")) {
+              // Remove the version, e.g. org.qt.a->1.0 or org.qt.a:1.0
+              String name = dependency.trim().split("(->|<=|>=|<|>|=|:)")[0].trim();
+              if (!name.isEmpty()) {
+                dependencies.add(name);
+              }
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException("Invalid " + file + ": " + e.getMessage(), e);
+    }
+    return dependencies;
+  }
+
+  /**
+   * Constructs an instance of {@link QtRepoManifest}. The packages are hashed concurrently.
+   *
+   * @param packages
+   * @param repository
+   */
+  public static QtRepoManifest of(Path packages, Path repository) throws IOException {
+    Path manifest = repository.resolveSibling(repository.getFileName() + QtRepoManifest.SUFFIX);
+    Properties previous = new Properties();
+    if (Files.isRegularFile(manifest)) {
+      try (InputStream stream = Files.newInputStream(manifest)) {
+        previous.load(stream);
+      }
+    }
+
+    List<Path> directories;
+    try (Stream<Path> stream = Files.list(packages)) {
+      directories = stream.filter(p -> Files.isDirectory(p.resolve("meta"))).sorted().collect(Collectors.toList());
+    }
+
+    Properties current = new Properties();
+    Map<String, Set<String>> dependencies = new TreeMap<>();
+    try {
+      Map<String, String> hashes = directories.parallelStream().collect(Collectors.toMap(
+          d -> d.getFileName().toString(), d -> QtRepoManifest.hashUnchecked(d, previous, current)));
+      hashes.forEach((n, h) -> current.setProperty(QtRepoManifest.PACKAGE + n, h));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    for (Path directory : directories) {
+      dependencies.put(directory.getFileName().toString(), QtRepoManifest.getDependencies(directory));
+    }
+    return new QtRepoManifest(repository, manifest, previous, current, dependencies);
+  }
+
+  /**
+   * Hashes a package within a stream.
+   *
+   * @param directory
+   * @param previous
+   * @param current
+   */
+  private static String hashUnchecked(Path directory, Properties previous, Properties current) {
+    try {
+      return QtRepoManifest.hash(directory, previous, current);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
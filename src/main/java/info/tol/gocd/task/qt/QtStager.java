@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link QtStager} places the build outputs into the <code>data</code> directories of the
+ * packages, as defined by a mapping file. Each line of the mapping file maps a source, relative to
+ * the working directory, to a target directory, relative to the packages:
+ *
+ * <pre>
+ * # source = target
+ * build/linux-g++/bin/app = org.app/data/bin
+ * build/linux-g++/lib/*.so.* = org.app/data/lib
+ * build/linux-g++/qml = org.app.qml/data/qml
+ * </pre>
+ *
+ * A directory is staged with its content, including the symbolic links, the last name of a source
+ * may contain a glob pattern.
+ * The files are hard linked, or copied if a link is not possible. A file is skipped, if the target
+ * has the same size and modification time, so staging after a small rebuild only touches the
+ * changed files.
+ */
+public class QtStager {
+
+  private final Path          workingDir;
+  private final Path          packages;
+
+  private final AtomicInteger linked    = new AtomicInteger();
+  private final AtomicInteger copied    = new AtomicInteger();
+  private final AtomicInteger unchanged = new AtomicInteger();
+  private final AtomicLong    bytes     = new AtomicLong();
+
+  /**
+   * Constructs an instance of {@link QtStager}.
+   *
+   * @param workingDir
+   * @param packages
+   */
+  private QtStager(Path workingDir, Path packages) {
+    this.workingDir = workingDir;
+    this.packages = packages;
+  }
+
+  /**
+   * Get the number of hard linked files.
+   */
+  public final int getLinked() {
+    return this.linked.get();
+  }
+
+  /**
+   * Get the number of copied files.
+   */
+  public final int getCopied() {
+    return this.copied.get();
+  }
+
+  /**
+   * Get the number of files, that have been staged before.
+   */
+  public final int getUnchanged() {
+    return this.unchanged.get();
+  }
+
+  /**
+   * Get the bytes of the linked and copied files.
+   */
+  public final long getBytes() {
+    return this.bytes.get();
+  }
+
+  /**
+   * Stages the files of the mapping file concurrently. Returns the number of files.
+   *
+   * @param mapping
+   */
+  public final int stage(Path mapping) throws IOException {
+    Map<Path, Path> files = new LinkedHashMap<>();
+    int number = 0;
+    for (String line : Files.readAllLines(mapping, StandardCharsets.UTF_8)) {
+      number++;
+      String text = line.trim();
+      if (text.isEmpty() || text.startsWith("#")) {
+        continue;
+      }
+      int index = text.indexOf('=');
+      if (index < 0) {
+        throw new IOException(String.format("Invalid mapping in %s:%d: %s", mapping, number, line));
+      }
+      Path target = this.packages.resolve(text.substring(index + 1).trim()).normalize();
+      for (Path source : resolve(text.substring(0, index).trim())) {
+        if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+          for (Path file : QtStager.list(source)) {
+            files.put(target.resolve(source.relativize(file).toString()), file);
+          }
+        } else {
+          files.put(target.resolve(source.getFileName().toString()), source);
+        }
+      }
+    }
+
+    try {
+      files.entrySet().parallelStream().forEach(e -> stageUnchecked(e.getValue(), e.getKey()));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return files.size();
+  }
+
+  /**
+   * Get the files of a directory tree, including the symbolic links and the hidden files. Symbolic
+   * links are not followed, so the soname links of the libraries are staged as links.
+   *
+   * @param root
+   */
+  private static List<Path> list(Path root) throws IOException {
+    List<Path> files = new ArrayList<>();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() || attrs.isSymbolicLink()) {
+          files.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Resolves a source of the mapping, the last name may be a glob pattern.
+   *
+   * @param source
+   */
+  private List<Path> resolve(String source) throws IOException {
+    Path path = this.workingDir.resolve(source).normalize();
+    String name = path.getFileName().toString();
+    if (!name.contains("*") && !name.contains("?") && !name.contains("[") && !name.contains("{")) {
+      if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        throw new IOException("Source " + source + " doesn't exist");
+      }
+      return Collections.singletonList(path);
+    }
+
+    List<Path> paths = new ArrayList<>();
+    if (Files.isDirectory(path.getParent())) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(path.getParent(), name)) {
+        stream.forEach(paths::add);
+      }
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  /**
+   * Stages a single file, unless the target has the same size and modification time. A symbolic
+   * link is skipped, if the target links to the same path.
+   *
+   * @param source
+   * @param target
+   */
+  private void stage(Path source, Path target) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+      BasicFileAttributes other =
+          Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      boolean same = attrs.isSymbolicLink()
+          ? other.isSymbolicLink() && Files.readSymbolicLink(source).equals(Files.readSymbolicLink(target))
+          : !other.isSymbolicLink() && (attrs.size() == other.size())
+              && attrs.lastModifiedTime().equals(other.lastModifiedTime());
+      if (same) {
+        this.unchanged.incrementAndGet();
+        return;
+      }
+      Files.delete(target);
+    }
+
+    Files.createDirectories(target.getParent());
+    if (attrs.isSymbolicLink()) {
+      Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+      this.copied.incrementAndGet();
+      return;
+    }
+
+    try {
+      Files.createLink(target, source);
+      this.linked.incrementAndGet();
+    } catch (IOException | UnsupportedOperationException e) {
+      QtStager.transfer(source, target, attrs);
+      this.copied.incrementAndGet();
+    }
+    this.bytes.addAndGet(attrs.size());
+  }
+
+  /**
+   * Stages a single file within a stream.
+   *
+   * @param source
+   * @param target
+   */
+  private void stageUnchecked(Path source, Path target) {
+    try {
+      stage(source, target);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Copies a file by {@link FileChannel#transferTo}, keeping the modification time and the
+   * permissions.
+   *
+   * @param source
+   * @param target
+   * @param attrs
+   */
+  private static void transfer(Path source, Path target, BasicFileAttributes attrs) throws IOException {
+    try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      long position = 0;
+      long size = input.size();
+      while (position < size) {
+        position += input.transferTo(position, size - position, output);
+      }
+    }
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(source);
+      Files.setPosixFilePermissions(target, permissions);
+    } catch (UnsupportedOperationException e) {
+      // The file system has no permissions
+    }
+    Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+  }
+
+  /**
+   * Constructs an instance of {@link QtStager}.
+   *
+   * @param workingDir
+   * @param packages
+   */
+  public static QtStager of(Path workingDir, Path packages) {
+    return new QtStager(workingDir, packages);
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import info.tol.gocd.util.FileTree;
+
+/**
+ * The {@link QtTest} discovers the QtTest executables of a build and isolates concurrent test runs.
+ * Each test runs in <code>build/&lt;spec&gt;/tests/&lt;name&gt;</code>, with its own HOME, XDG
+ * and temporary directories, and writes its results to
+ * <code>build/&lt;spec&gt;/test-results/&lt;name&gt;.xml</code>.
+ *
+ * The test functions of a large test can be split into shards, that are balanced by the durations
+ * of previous runs in <code>build/&lt;spec&gt;/test-durations.properties</code>.
+ */
+public class QtTest {
+
+  private static final String PATTERN   = "tst_*";
+  private static final String DURATIONS = "test-durations.properties";
+
+  private static final List<String> SPECIAL =
+      Arrays.asList("initTestCase", "initTestCase_data", "cleanupTestCase", "init", "cleanup");
+
+  private static final String HOME    = "home";
+  private static final String CONFIG  = "config";
+  private static final String DATA    = "data";
+  private static final String CACHE   = "cache";
+  private static final String RUNTIME = "runtime";
+  private static final String TEMP    = "tmp";
+
+  /**
+   * Constructs an instance of {@link QtTest}.
+   */
+  private QtTest() {}
+
+  /**
+   * Returns <code>true</code> if the test name is empty or a glob pattern, which selects several
+   * test executables.
+   *
+   * @param name
+   */
+  public static boolean isPattern(String name) {
+    return (name == null) || name.trim().isEmpty() || name.contains("*") || name.contains("?");
+  }
+
+  /**
+   * Get the sorted names of the test executables in the directory, that match the glob pattern.
+   * Without a pattern all QtTest executables named <code>tst_*</code> are selected. The names
+   * don't have the <code>.exe</code> suffix on Windows.
+   *
+   * @param bin
+   * @param pattern
+   */
+  public static List<String> find(Path bin, String pattern) throws IOException {
+    String glob = (pattern == null) || pattern.trim().isEmpty() ? QtTest.PATTERN : pattern.trim();
+    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+    List<String> tests = new ArrayList<>();
+    if (!Files.isDirectory(bin)) {
+      return tests;
+    }
+
+    boolean isWindows = Qt2.isWindows();
+    try (Stream<Path> stream = Files.list(bin)) {
+      for (Path file : stream.collect(Collectors.toList())) {
+        String name = file.getFileName().toString();
+        if (isWindows) {
+          if (!name.toLowerCase().endsWith(".exe")) {
+            continue;
+          }
+          name = name.substring(0, name.length() - 4);
+        }
+        if (Files.isRegularFile(file) && Files.isExecutable(file) && matcher.matches(Paths.get(name))) {
+          tests.add(name);
+        }
+      }
+    }
+    Collections.sort(tests);
+    return tests;
+  }
+
+  /**
+   * Get the executable of a test.
+   *
+   * @param bin
+   * @param test
+   */
+  public static Path getExecutable(Path bin, String test) {
+    return bin.resolve(Qt2.isWindows() ? test + ".exe" : test);
+  }
+
+  /**
+   * Get the environment, that isolates a test in its directory.
+   *
+   * @param directory
+   */
+  public static Map<String, String> getEnvironment(Path directory) {
+    Map<String, String> environment = new LinkedHashMap<>();
+    environment.put("HOME", directory.resolve(QtTest.HOME).toString());
+    environment.put("USERPROFILE", directory.resolve(QtTest.HOME).toString());
+    environment.put("XDG_CONFIG_HOME", directory.resolve(QtTest.CONFIG).toString());
+    environment.put("XDG_DATA_HOME", directory.resolve(QtTest.DATA).toString());
+    environment.put("XDG_CACHE_HOME", directory.resolve(QtTest.CACHE).toString());
+    environment.put("XDG_RUNTIME_DIR", directory.resolve(QtTest.RUNTIME).toString());
+    environment.put("TMPDIR", directory.resolve(QtTest.TEMP).toString());
+    environment.put("TEMP", directory.resolve(QtTest.TEMP).toString());
+    environment.put("TMP", directory.resolve(QtTest.TEMP).toString());
+    return environment;
+  }
+
+  /**
+   * Creates the empty directories of a test. The runtime directory is private to the user, as Qt
+   * expects it.
+   *
+   * @param directory
+   */
+  public static void prepare(Path directory) throws IOException {
+    FileTree.delete(directory);
+    for (String name : new String[] { QtTest.HOME, QtTest.CONFIG, QtTest.DATA, QtTest.CACHE, QtTest.TEMP }) {
+      Files.createDirectories(directory.resolve(name));
+    }
+
+    Path runtime = Files.createDirectories(directory.resolve(QtTest.RUNTIME));
+    try {
+      Files.setPosixFilePermissions(runtime, PosixFilePermissions.fromString("rwx------"));
+    } catch (UnsupportedOperationException e) {
+      // no POSIX file system
+    }
+  }
+
+  /**
+   * Parses the output of <code>-functions</code>, which lists a test function per line, e.g.
+   * "testFoo()". The special functions, which QtTest calls itself, are skipped.
+   *
+   * @param lines
+   */
+  public static List<String> getFunctions(List<String> lines) {
+    List<String> functions = new ArrayList<>();
+    for (String line : lines) {
+      String function = line.trim();
+      if (function.endsWith("()") && (function.length() > 2)) {
+        String name = function.substring(0, function.length() - 2);
+        if (!QtTest.isSpecial(name)) {
+          functions.add(name);
+        }
+      }
+    }
+    return functions;
+  }
+
+  /**
+   * Returns <code>true</code> for the special functions, which QtTest calls itself and which can't be
+   * selected by name.
+   *
+   * @param function
+   */
+  public static boolean isSpecial(String function) {
+    return QtTest.SPECIAL.contains(function);
+  }
+
+  /**
+   * Splits the test functions into balanced groups. The longest functions are assigned first, each
+   * to the group with the least total duration. Functions without a known duration are assumed to
+   * take the average duration.
+   *
+   * @param test
+   * @param functions
+   * @param durations
+   * @param groups
+   */
+  public static List<List<String>> split(String test, List<String> functions, Map<String, Double> durations,
+      int groups) {
+    Map<String, Double> times = new HashMap<>();
+    functions.stream().filter(f -> durations.containsKey(QtTest.getKey(test, f)))
+        .forEach(f -> times.put(f, durations.get(QtTest.getKey(test, f))));
+    double average = times.values().stream().mapToDouble(Double::doubleValue).average().orElse(1.0);
+    functions.forEach(f -> times.putIfAbsent(f, average));
+
+    List<String> sorted = new ArrayList<>(functions);
+    Collections.sort(sorted, Comparator.comparing(times::get).reversed());
+
+    int count = Math.max(1, Math.min(groups, functions.size()));
+    List<List<String>> shards = new ArrayList<>();
+    double[] loads = new double[count];
+    for (int index = 0; index < count; index++) {
+      shards.add(new ArrayList<>());
+    }
+    for (String function : sorted) {
+      int index = 0;
+      for (int i = 1; i < count; i++) {
+        index = (loads[i] < loads[index]) ? i : index;
+      }
+      shards.get(index).add(function);
+      loads[index] += times.get(function);
+    }
+
+    // Keep the order of the test, as far as possible
+    shards.forEach(s -> Collections.sort(s, Comparator.comparing(functions::indexOf)));
+    return shards;
+  }
+
+  /**
+   * Reads the durations in seconds of the test functions from previous runs.
+   *
+   * @param base
+   */
+  public static Map<String, Double> readDurations(Path base) throws IOException {
+    Map<String, Double> durations = new HashMap<>();
+    Path file = base.resolve(QtTest.DURATIONS);
+    if (Files.isRegularFile(file)) {
+      Properties properties = new Properties();
+      try (InputStream stream = Files.newInputStream(file)) {
+        properties.load(stream);
+      }
+      for (String name : properties.stringPropertyNames()) {
+        try {
+          durations.put(name, Double.parseDouble(properties.getProperty(name)));
+        } catch (NumberFormatException e) {
+          // ignore invalid entries
+        }
+      }
+    }
+    return durations;
+  }
+
+  /**
+   * Stores the durations in seconds of the test functions.
+   *
+   * @param base
+   * @param durations
+   */
+  public static void storeDurations(Path base, Map<String, Double> durations) throws IOException {
+    Properties properties = new Properties();
+    durations.forEach((k, v) -> properties.setProperty(k, String.valueOf(v)));
+    Files.createDirectories(base);
+    try (OutputStream stream = Files.newOutputStream(base.resolve(QtTest.DURATIONS))) {
+      properties.store(stream, "Durations of the test functions in seconds");
+    }
+  }
+
+  /**
+   * Get the key of a test function for the durations.
+   *
+   * @param test
+   * @param function
+   */
+  public static String getKey(String test, String function) {
+    return test + "::" + function;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import info.tol.gocd.util.Environment;
+import info.tol.gocd.util.FileTree;
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtTestCache} keeps the reports of passed tests. The key is a hash of the test
+ * executable, the libraries of <code>build/&lt;spec&gt;/lib</code> it loads, the QML modules and
+ * plugins of the build and the environment, that influences the test. If nothing has changed, the
+ * cached report is replayed instead of running the test.
+ *
+ * The libraries are resolved by their names: a library is loaded, if its file name occurs in the
+ * test executable or in another loaded library. This finds the dependencies of ELF, PE and Mach-O
+ * files alike, it may only find too many.
+ */
+public class QtTestCache {
+
+  private static final List<String>   OUTPUTS     = Arrays.asList("qml", "plugins");
+  private static final List<String>   ENVIRONMENT = Arrays.asList(Qt2.QT_HOME, Qt2.QT_ARCH, Qt2.QT_SPEC,
+      "QT_QPA_PLATFORM", "QT_QUICK_BACKEND", "LANG", "LC_ALL", "TZ");
+
+  private final Path                  cache;
+  private final Path                  libDir;
+  private final String                key;
+
+  private final Map<Path, String>     hashes       = new ConcurrentHashMap<>();
+  private final Map<Path, List<Path>> dependencies = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs an instance of {@link QtTestCache}.
+   *
+   * @param cache
+   * @param libDir
+   * @param key
+   */
+  private QtTestCache(Path cache, Path libDir, String key) {
+    this.cache = cache;
+    this.libDir = libDir;
+    this.key = key;
+  }
+
+  /**
+   * Get the cache key of a test executable.
+   *
+   * @param binary
+   */
+  public final String getKey(Path binary) throws IOException {
+    List<Path> libraries = new ArrayList<>();
+    try (Stream<Path> stream = Files.isDirectory(this.libDir) ? Files.list(this.libDir) : Stream.empty()) {
+      libraries.addAll(stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+    }
+
+    // Resolve the closure of the libraries, by the names found in the binaries
+    Set<Path> resolved = new TreeSet<>();
+    Deque<Path> queue = new ArrayDeque<>(Collections.singleton(binary));
+    while (!queue.isEmpty()) {
+      for (Path library : getDependencies(queue.poll(), libraries)) {
+        if (resolved.add(library)) {
+          queue.add(library);
+        }
+      }
+    }
+
+    Hash hash = Hash.sha256().update(this.key).update(binary.getFileName().toString()).update(getHash(binary));
+    for (Path library : resolved) {
+      hash.update(library.getFileName().toString()).update(getHash(library));
+    }
+    return hash.toHex();
+  }
+
+  /**
+   * Restores the cached report of a passed test. Returns <code>false</code> on a cache miss.
+   *
+   * @param key
+   * @param report
+   */
+  public final boolean restore(String key, Path report) throws IOException {
+    Path entry = this.cache.resolve(key + ".xml");
+    if (!Files.isRegularFile(entry)) {
+      return false;
+    }
+    Files.createDirectories(report.getParent());
+    Files.copy(entry, report, StandardCopyOption.REPLACE_EXISTING);
+    return true;
+  }
+
+  /**
+   * Stores the report of a passed test.
+   *
+   * @param key
+   * @param report
+   */
+  public final void store(String key, Path report) throws IOException {
+    Files.createDirectories(this.cache);
+    Path temp = this.cache.resolve(key + "." + UUID.randomUUID() + ".tmp");
+    try {
+      Files.copy(report, temp);
+      Files.move(temp, this.cache.resolve(key + ".xml"), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Get the hash of the file content. The hashes of the libraries are shared by all tests.
+   *
+   * @param file
+   */
+  private String getHash(Path file) throws IOException {
+    String hash = this.hashes.get(file);
+    if (hash == null) {
+      hash = Hash.of(file);
+      this.hashes.put(file, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Get the libraries, whose names occur in the binary. The dependencies of the libraries are
+   * shared by all tests.
+   *
+   * @param file
+   * @param libraries
+   */
+  private List<Path> getDependencies(Path file, List<Path> libraries) throws IOException {
+    List<Path> list = this.dependencies.get(file);
+    if (list == null) {
+      String text = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+      list = libraries.stream().filter(l -> !l.equals(file) && text.contains(l.getFileName().toString()))
+          .collect(Collectors.toList());
+      this.dependencies.put(file, list);
+    }
+    return list;
+  }
+
+  /**
+   * Constructs an instance of {@link QtTestCache}, or <code>null</code> if the cache is not enabled
+   * by {@link Qt2#QT_TEST_CACHE}. The QML modules, the plugins and the environment are hashed once
+   * for all tests.
+   *
+   * @param environment
+   * @param base
+   */
+  public static QtTestCache of(Environment environment, Path base) throws IOException {
+    String cache = environment.get(Qt2.QT_TEST_CACHE);
+    if ((cache == null) || cache.trim().isEmpty()) {
+      return null;
+    }
+
+    Hash hash = Hash.sha256();
+    for (String name : QtTestCache.ENVIRONMENT) {
+      hash.update(name + "=" + environment.get(name));
+    }
+    for (String name : QtTestCache.OUTPUTS) {
+      hash.update(name);
+      FileTree.hash(hash, base.resolve(name), Collections.emptyList());
+    }
+    return new QtTestCache(Paths.get(cache.trim()), base.resolve("lib"), hash.toHex());
+  }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * The {@link QtTestReport} reads and merges the xunit reports of QtTest. The reports are streamed,
+ * so that large reports are not loaded into memory.
+ */
+public class QtTestReport {
+
+  /**
+   * The result of a test function.
+   */
+  public enum Status {
+    PASS,
+    SKIP,
+    FAIL,
+    ERROR
+  }
+
+  /**
+   * The {@link TestCase} is the result of a test function, without its messages.
+   */
+  public static class TestCase {
+
+    private final String name;
+    private final double time;
+    private Status       status;
+    private String       message;
+
+    /**
+     * Constructs an instance of {@link TestCase}.
+     *
+     * @param name
+     * @param time
+     * @param status
+     */
+    private TestCase(String name, double time, Status status) {
+      this.name = name;
+      this.time = time;
+      this.status = status;
+    }
+
+    /**
+     * Get the name of the test function.
+     */
+    public final String getName() {
+      return this.name;
+    }
+
+    /**
+     * Get the duration in seconds.
+     */
+    public final double getTime() {
+      return this.time;
+    }
+
+    /**
+     * Get the result of the test function.
+     */
+    public final Status getStatus() {
+      return this.status;
+    }
+
+    /**
+     * Get the message of the first failure or skip, or <code>null</code>.
+     */
+    public final String getMessage() {
+      return this.message;
+    }
+
+    /**
+     * Returns <code>true</code> if the test function failed.
+     */
+    public final boolean isFailed() {
+      return (this.status == Status.FAIL) || (this.status == Status.ERROR);
+    }
+
+    /**
+     * Sets a worse status and the message of the first incident.
+     *
+     * @param status
+     * @param message
+     */
+    private void setStatus(Status status, String message) {
+      if (status.compareTo(this.status) > 0) {
+        this.status = status;
+      }
+      if ((this.message == null) && (status != Status.PASS)) {
+        this.message = message;
+      }
+    }
+  }
+
+  /**
+   * The {@link Output} collects the text of the <code>system-out</code> or
+   * <code>system-err</code> elements of the reports in a temporary file, so that the output of
+   * large reports is not kept in memory.
+   */
+  private static class Output implements Closeable {
+
+    private final Path   file;
+    private final Writer writer;
+    private boolean      empty = true;
+
+    /**
+     * Constructs an instance of {@link Output}.
+     *
+     * @param file
+     */
+    private Output(Path file) throws IOException {
+      this.file = file;
+      this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a text on a new line.
+     *
+     * @param text
+     */
+    private void append(String text) throws IOException {
+      if (!this.empty) {
+        this.writer.write('\n');
+      }
+      this.writer.write(text);
+      this.empty = false;
+    }
+
+    /**
+     * Writes the collected text as element, in chunks that never split a surrogate pair.
+     *
+     * @param writer
+     * @param factory
+     * @param name
+     */
+    private void write(XMLEventWriter writer, XMLEventFactory factory, String name)
+        throws IOException, XMLStreamException {
+      this.writer.close();
+      writer.add(factory.createStartElement("", "", name));
+      try (Reader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+        char[] buffer = new char[64 * 1024];
+        int offset = 0;
+        int length;
+        while ((length = reader.read(buffer, offset, buffer.length - offset)) > 0) {
+          int end = offset + length;
+          int split = Character.isHighSurrogate(buffer[end - 1]) ? end - 1 : end;
+          if (split > 0) {
+            writer.add(factory.createCharacters(new String(buffer, 0, split)));
+          }
+          buffer[0] = buffer[end - 1];
+          offset = end - split;
+        }
+        if (offset > 0) {
+          writer.add(factory.createCharacters(new String(buffer, 0, offset)));
+        }
+      }
+      writer.add(factory.createEndElement("", "", name));
+    }
+
+    /**
+     * Deletes the temporary file.
+     */
+    @Override
+    public void close() throws IOException {
+      this.writer.close();
+      Files.deleteIfExists(this.file);
+    }
+  }
+
+
+  private static final String       TESTSUITE  = "testsuite";
+  private static final String       TESTCASE   = "testcase";
+  private static final String       PROPERTIES = "properties";
+  private static final String       SYSTEM_ERR = "system-err";
+  private static final String       SYSTEM_OUT = "system-out";
+
+  private static final String       NAME       = "name";
+  private static final String       TIME       = "time";
+  private static final String       RESULT     = "result";
+  private static final String       MESSAGE    = "message";
+  private static final List<String> FAILED     = Arrays.asList("fail", "xpass");
+
+  /**
+   * Constructs an instance of {@link QtTestReport}.
+   */
+  private QtTestReport() {}
+
+  /**
+   * Reads the test cases of a report one after another.
+   *
+   * @param report
+   * @param consumer
+   */
+  public static void read(Path report, Consumer<TestCase> consumer) throws IOException {
+    try (InputStream stream = Files.newInputStream(report)) {
+      XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(stream);
+      TestCase testCase = null;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (event.isStartElement()) {
+          StartElement element = event.asStartElement();
+          String name = getName(element);
+          if (QtTestReport.TESTCASE.equals(name)) {
+            String result = getAttribute(element, QtTestReport.RESULT);
+            testCase = new TestCase(getAttribute(element, QtTestReport.NAME),
+                QtTestReport.toDouble(getAttribute(element, QtTestReport.TIME)), Status.PASS);
+            testCase.setStatus(QtTestReport.toStatus(name, result), null);
+          } else if (testCase != null) {
+            Status status = QtTestReport.toStatus(name, getAttribute(element, QtTestReport.RESULT));
+            if ("message".equals(name) && "skip".equals(getAttribute(element, "type"))) {
+              status = Status.SKIP;
+            }
+            testCase.setStatus(status, getAttribute(element, QtTestReport.MESSAGE));
+          }
+        } else if (event.isEndElement()
+            && QtTestReport.TESTCASE.equals(event.asEndElement().getName().getLocalPart())) {
+          if ((testCase != null) && (testCase.getName() != null)) {
+            consumer.accept(testCase);
+          }
+          testCase = null;
+        }
+      }
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not read the test report " + report, e);
+    }
+  }
+
+  /**
+   * Get the durations in seconds of the test functions. The rows of a data driven function are
+   * added up.
+   *
+   * @param report
+   */
+  public static Map<String, Double> getDurations(Path report) throws IOException {
+    Map<String, Double> durations = new LinkedHashMap<>();
+    if (Files.isRegularFile(report)) {
+      QtTestReport.read(report, t -> durations.merge(t.getName(), t.getTime(), Double::sum));
+    }
+    return durations;
+  }
+
+  /**
+   * Get the names of the failed test functions.
+   *
+   * @param report
+   */
+  public static List<String> getFailures(Path report) throws IOException {
+    Collection<String> failures = new LinkedHashSet<>();
+    QtTestReport.read(report, t -> {
+      if (t.isFailed()) {
+        failures.add(t.getName());
+      }
+    });
+    return new ArrayList<>(failures);
+  }
+
+  /**
+   * Merges the reports of the shards of a test into a single test suite. The counters of the test
+   * suite are calculated from the test cases, the properties are taken from the first report. A
+   * missing report, e.g. of a crashed shard, is recorded as an error.
+   *
+   * @param name
+   * @param parts
+   * @param target
+   */
+  public static void merge(String name, List<Path> parts, Path target) throws IOException {
+    QtTestReport.merge(name, parts, Collections.emptyMap(), null, target);
+  }
+
+  /**
+   * Merges the reports of a test into a single test suite, without the excluded test functions of
+   * a report, e.g. those that were run again. The special functions, e.g. initTestCase, are kept
+   * once, from the first report or from a report where they failed. The note is added to the
+   * output of the test suite.
+   *
+   * @param name
+   * @param parts
+   * @param excluded
+   * @param note
+   * @param target
+   */
+  public static void merge(String name, List<Path> parts, Map<Path, Collection<String>> excluded, String note,
+      Path target) throws IOException {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    long[] counters = new long[Status.values().length];
+    double[] time = new double[1];
+    // Each part runs the special functions, e.g. initTestCase, they are kept once from the first
+    // part, or from the part where they did worst
+    Map<String, TestCase> special = new LinkedHashMap<>();
+    Map<String, Path> sources = new HashMap<>();
+    for (Path part : parts) {
+      if (!Files.isRegularFile(part)) {
+        counters[Status.ERROR.ordinal()]++;
+        continue;
+      }
+      readTestSuite(part).forEach(attributes::putIfAbsent);
+      Collection<String> skip = excluded.getOrDefault(part, Collections.emptySet());
+      QtTestReport.read(part, t -> {
+        if (skip.contains(t.getName())) {
+          return;
+        } else if (QtTest.isSpecial(t.getName())) {
+          TestCase known = special.get(t.getName());
+          if ((known == null) || (t.getStatus().compareTo(known.getStatus()) > 0)) {
+            special.put(t.getName(), t);
+            sources.put(t.getName(), part);
+          }
+        } else {
+          counters[t.getStatus().ordinal()]++;
+          time[0] += t.getTime();
+        }
+      });
+    }
+    for (TestCase testCase : special.values()) {
+      counters[testCase.getStatus().ordinal()]++;
+      time[0] += testCase.getTime();
+    }
+    Map<Path, Collection<String>> skipped = new HashMap<>();
+    for (Path part : parts) {
+      Collection<String> skip = new HashSet<>(excluded.getOrDefault(part, Collections.emptySet()));
+      sources.forEach((n, p) -> {
+        if (!p.equals(part)) {
+          skip.add(n);
+        }
+      });
+      skipped.put(part, skip);
+    }
+    attributes.put(QtTestReport.NAME, name);
+    attributes.put("tests", String.valueOf(Arrays.stream(counters).sum()));
+    attributes.put("failures", String.valueOf(counters[Status.FAIL.ordinal()]));
+    attributes.put("errors", String.valueOf(counters[Status.ERROR.ordinal()]));
+    attributes.put("skipped", String.valueOf(counters[Status.SKIP.ordinal()]));
+    attributes.put(QtTestReport.TIME, String.format(Locale.ROOT, "%.3f", time[0]));
+
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    Files.createDirectories(target.getParent());
+    XMLEventFactory factory = XMLEventFactory.newInstance();
+    try (OutputStream stream = Files.newOutputStream(temp);
+        Output systemOut = new Output(target.resolveSibling(target.getFileName() + ".out.tmp"));
+        Output systemErr = new Output(target.resolveSibling(target.getFileName() + ".err.tmp"))) {
+      XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(stream, "UTF-8");
+      writer.add(factory.createStartDocument("UTF-8", "1.0"));
+      writer.add(factory.createStartElement("", "", QtTestReport.TESTSUITE));
+      for (Map.Entry<String, String> entry : attributes.entrySet()) {
+        writer.add(factory.createAttribute(entry.getKey(), entry.getValue()));
+      }
+
+      boolean first = true;
+      for (Path part : parts) {
+        if (Files.isRegularFile(part)) {
+          copyTestCases(part, writer, first, skipped.get(part), systemOut, systemErr);
+          first = false;
+        } else {
+          writer.add(factory.createStartElement("", "", QtTestReport.TESTCASE));
+          writer.add(factory.createAttribute(QtTestReport.NAME, part.getParent().getFileName().toString()));
+          writer.add(factory.createAttribute(QtTestReport.RESULT, "fail"));
+          writer.add(factory.createStartElement("", "", "error"));
+          writer.add(factory.createAttribute(QtTestReport.MESSAGE, "No test report, the test did not finish"));
+          writer.add(factory.createEndElement("", "", "error"));
+          writer.add(factory.createEndElement("", "", QtTestReport.TESTCASE));
+        }
+      }
+      if (note != null) {
+        systemOut.append(note);
+      }
+
+      systemOut.write(writer, factory, QtTestReport.SYSTEM_OUT);
+      systemErr.write(writer, factory, QtTestReport.SYSTEM_ERR);
+      writer.add(factory.createEndElement("", "", QtTestReport.TESTSUITE));
+      writer.add(factory.createEndDocument());
+      writer.close();
+    } catch (XMLStreamException e) {
+      Files.deleteIfExists(temp);
+      throw new IOException("Could not write the test report " + target, e);
+    }
+    // The target may be one of the parts
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Converts a report into the JUnit format, that GoCD shows in the test tab. The report is read
+   * twice, first for the counters of the test suite, then for the test cases, so that only a
+   * single test case is kept in memory.
+   *
+   * @param test
+   * @param report
+   * @param target
+   */
+  public static void toJUnit(String test, Path report, Path target) throws IOException {
+    long[] counters = new long[Status.values().length];
+    double[] time = new double[1];
+    QtTestReport.read(report, t -> {
+      counters[t.getStatus().ordinal()]++;
+      time[0] += t.getTime();
+    });
+
+    Files.createDirectories(target.getParent());
+    XMLEventFactory factory = XMLEventFactory.newInstance();
+    try (OutputStream stream = Files.newOutputStream(target)) {
+      XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(stream, "UTF-8");
+      writer.add(factory.createStartDocument("UTF-8", "1.0"));
+      writer.add(factory.createStartElement("", "", QtTestReport.TESTSUITE));
+      writer.add(factory.createAttribute(QtTestReport.NAME, test));
+      writer.add(factory.createAttribute("tests", String.valueOf(Arrays.stream(counters).sum())));
+      writer.add(factory.createAttribute("failures", String.valueOf(counters[Status.FAIL.ordinal()])));
+      writer.add(factory.createAttribute("errors", String.valueOf(counters[Status.ERROR.ordinal()])));
+      writer.add(factory.createAttribute("skipped", String.valueOf(counters[Status.SKIP.ordinal()])));
+      writer.add(factory.createAttribute(QtTestReport.TIME, String.format(Locale.ROOT, "%.3f", time[0])));
+
+      XMLStreamException[] error = new XMLStreamException[1];
+      QtTestReport.read(report, t -> {
+        try {
+          writer.add(factory.createStartElement("", "", QtTestReport.TESTCASE));
+          writer.add(factory.createAttribute("classname", test));
+          writer.add(factory.createAttribute(QtTestReport.NAME, t.getName()));
+          writer.add(factory.createAttribute(QtTestReport.TIME, String.format(Locale.ROOT, "%.3f", t.getTime())));
+          if (t.getStatus() != Status.PASS) {
+            String element = (t.getStatus() == Status.SKIP) ? "skipped"
+                : (t.getStatus() == Status.ERROR) ? "error" : "failure";
+            writer.add(factory.createStartElement("", "", element));
+            if (t.getMessage() != null) {
+              writer.add(factory.createAttribute(QtTestReport.MESSAGE, t.getMessage()));
+            }
+            writer.add(factory.createEndElement("", "", element));
+          }
+          writer.add(factory.createEndElement("", "", QtTestReport.TESTCASE));
+        } catch (XMLStreamException e) {
+          error[0] = (error[0] == null) ? e : error[0];
+        }
+      });
+      if (error[0] != null) {
+        throw error[0];
+      }
+      writer.add(factory.createEndElement("", "", QtTestReport.TESTSUITE));
+      writer.add(factory.createEndDocument());
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not write the test report " + target, e);
+    }
+  }
+
+  /**
+   * Reads the attributes of the test suite, without reading the rest of the report.
+   *
+   * @param report
+   */
+  private static Map<String, String> readTestSuite(Path report) throws IOException {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    try (InputStream stream = Files.newInputStream(report)) {
+      XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(stream);
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (event.isStartElement()) {
+          Iterator<?> iterator = event.asStartElement().getAttributes();
+          while (iterator.hasNext()) {
+            Attribute attribute = (Attribute) iterator.next();
+            attributes.put(attribute.getName().getLocalPart(), attribute.getValue());
+          }
+          break;
+        }
+      }
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not read the test report " + report, e);
+    }
+    return attributes;
+  }
+
+  /**
+   * Copies the test cases of a report, except the excluded test functions. The properties are only
+   * copied from the first report, the output of the test suite is collected.
+   *
+   * @param report
+   * @param writer
+   * @param first
+   * @param excluded
+   * @param systemOut
+   * @param systemErr
+   */
+  private static void copyTestCases(Path report, XMLEventWriter writer, boolean first, Collection<String> excluded,
+      Output systemOut, Output systemErr) throws IOException, XMLStreamException {
+    try (InputStream stream = Files.newInputStream(report)) {
+      XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(stream);
+      int depth = 0;
+      boolean copy = false;
+      Output output = null;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (event.isStartElement()) {
+          depth++;
+          if (depth == 2) {
+            StartElement element = event.asStartElement();
+            String name = getName(element);
+            copy = (QtTestReport.TESTCASE.equals(name)
+                && !excluded.contains(getAttribute(element, QtTestReport.NAME)))
+                || (first && QtTestReport.PROPERTIES.equals(name));
+            output = QtTestReport.SYSTEM_OUT.equals(name) ? systemOut
+                : QtTestReport.SYSTEM_ERR.equals(name) ? systemErr : null;
+          }
+        }
+
+        if (copy && (depth >= 2)) {
+          writer.add(event);
+        } else if ((output != null) && event.isCharacters() && !event.asCharacters().isWhiteSpace()) {
+          output.append(event.asCharacters().getData().trim());
+        }
+
+        if (event.isEndElement()) {
+          if (depth == 2) {
+            copy = false;
+            output = null;
+          }
+          depth--;
+        }
+      }
+      reader.close();
+    }
+  }
+
+  /**
+   * Get the status of an element of a test case.
+   *
+   * @param element
+   * @param result
+   */
+  private static Status toStatus(String element, String result) {
+    if ("error".equals(element)) {
+      return Status.ERROR;
+    } else if ("skipped".equals(element) || "skip".equals(result)) {
+      return Status.SKIP;
+    } else if ("failure".equals(element)) {
+      return "xfail".equals(result) ? Status.PASS : Status.FAIL;
+    }
+    return QtTestReport.FAILED.contains(result) ? Status.FAIL : Status.PASS;
+  }
+
+  /**
+   * Get the local name of an element.
+   *
+   * @param element
+   */
+  private static String getName(StartElement element) {
+    return element.getName().getLocalPart();
+  }
+
+  /**
+   * Get the value of an attribute, or <code>null</code>.
+   *
+   * @param element
+   * @param name
+   */
+  private static String getAttribute(StartElement element, String name) {
+    Attribute attribute = element.getAttributeByName(new QName(name));
+    return (attribute == null) ? null : attribute.getValue();
+  }
+
+  /**
+   * Parses a number of the report, invalid numbers are 0.
+   *
+   * @param value
+   */
+  private static double toDouble(String value) {
+    try {
+      return (value == null) ? 0 : Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
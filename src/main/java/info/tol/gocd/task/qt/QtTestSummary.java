@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The {@link QtTestSummary} collects the results of the test reports for a compact summary on the
+ * console: the number of passed, failed and skipped test functions, the failures and the slowest
+ * test functions. Only a limited number of failures and test functions is kept.
+ */
+public class QtTestSummary {
+
+  private static final int                              FAILURES = 50;
+  private static final int                              SLOWEST  = 10;
+
+  private final long[]                                  counters = new long[QtTestReport.Status.values().length];
+  private final List<String>                            failures = new ArrayList<>();
+  private final PriorityQueue<Map.Entry<String, Double>> slowest  =
+      new PriorityQueue<>(Map.Entry.comparingByValue());
+
+  private double                                        time;
+  private long                                          omitted;
+
+  /**
+   * Constructs an instance of {@link QtTestSummary}.
+   */
+  public QtTestSummary() {}
+
+  /**
+   * Adds the test cases of a report.
+   *
+   * @param test
+   * @param report
+   */
+  public final synchronized QtTestSummary add(String test, Path report) throws IOException {
+    QtTestReport.read(report, t -> {
+      this.counters[t.getStatus().ordinal()]++;
+      this.time += t.getTime();
+
+      String name = test + "::" + t.getName();
+      if (t.isFailed()) {
+        if (this.failures.size() < QtTestSummary.FAILURES) {
+          this.failures.add(name + ((t.getMessage() == null) ? "" : ": " + t.getMessage()));
+        } else {
+          this.omitted++;
+        }
+      }
+
+      this.slowest.add(new AbstractMap.SimpleEntry<>(name, t.getTime()));
+      if (this.slowest.size() > QtTestSummary.SLOWEST) {
+        this.slowest.poll();
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Get the lines of the summary.
+   */
+  public final synchronized List<String> getLines() {
+    List<String> lines = new ArrayList<>();
+    lines.add(String.format(Locale.ROOT, "Test functions: %d passed, %d failed, %d skipped in %.1fs",
+        this.counters[QtTestReport.Status.PASS.ordinal()],
+        this.counters[QtTestReport.Status.FAIL.ordinal()] + this.counters[QtTestReport.Status.ERROR.ordinal()],
+        this.counters[QtTestReport.Status.SKIP.ordinal()], this.time));
+
+    if (!this.failures.isEmpty()) {
+      lines.add("Failed test functions:");
+      this.failures.forEach(f -> lines.add("  " + f));
+      if (this.omitted > 0) {
+        lines.add(String.format("  ... and %d more", this.omitted));
+      }
+    }
+
+    List<Map.Entry<String, Double>> entries = new ArrayList<>(this.slowest);
+    Collections.sort(entries, Collections.reverseOrder(Map.Entry.comparingByValue()));
+    if (!entries.isEmpty()) {
+      lines.add("Slowest test functions:");
+      entries.forEach(e -> lines.add(String.format(Locale.ROOT, "  %8.3fs  %s", e.getValue(), e.getKey())));
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import info.tol.gocd.util.Hash;
+
+/**
+ * The {@link QtToolIndex} knows the kits and tools of a Qt installation. The QT_HOME directory and
+ * the Tools of its parent are scanned once: the kits with their qmake and tools, the versions of
+ * the QtInstallerFramework and jom. The index is kept on disk and is valid as long as none of the
+ * scanned directories is modified, so resolving a tool is a lookup.
+ *
+ * The versions of the QtInstallerFramework are sorted by their numbers, the newest version is
+ * used.
+ */
+public class QtToolIndex {
+
+  private static final String                   DIRECTORY = ".gocd-qt-tools";
+  private static final Pattern                  VERSION   = Pattern.compile("\\d+(\\.\\d+)*");
+
+  private static final String                   KIT       = "kit.";
+  private static final String                   TOOL      = "tool.";
+  private static final String                   MODIFIED  = "modified.";
+  private static final String                   IFW       = "ifw";
+  private static final String                   JOM       = "jom";
+
+  private static final Map<Path, QtToolIndex>   INDEXES   = new ConcurrentHashMap<>();
+
+
+  private final Path                            home;
+  private final Properties                      index;
+
+  /**
+   * Constructs an instance of {@link QtToolIndex}.
+   *
+   * @param home
+   * @param index
+   */
+  private QtToolIndex(Path home, Properties index) {
+    this.home = home;
+    this.index = index;
+  }
+
+  /**
+   * Get the architectures of the kits, e.g. gcc_64.
+   */
+  public final List<String> getArchs() {
+    return this.index.stringPropertyNames().stream().filter(n -> n.startsWith(QtToolIndex.KIT))
+        .map(n -> n.substring(QtToolIndex.KIT.length())).sorted().collect(Collectors.toList());
+  }
+
+  /**
+   * Get the spec of a kit, or <code>null</code> if unknown.
+   *
+   * @param arch
+   */
+  public final String getSpec(String arch) {
+    String spec = this.index.getProperty(QtToolIndex.KIT + arch);
+    return (spec == null) || spec.isEmpty() ? null : spec;
+  }
+
+  /**
+   * Get a tool of a kit, e.g. qmake or lrelease, or <code>null</code> if the kit has no such tool.
+   *
+   * @param arch
+   * @param name
+   */
+  public final File getTool(String arch, String name) {
+    String path = this.index.getProperty(QtToolIndex.TOOL + arch + "." + name);
+    return (path == null) ? null : new File(path);
+  }
+
+  /**
+   * Get the versions of the QtInstallerFramework, the newest first.
+   */
+  public final List<String> getInstallerVersions() {
+    String versions = this.index.getProperty(QtToolIndex.IFW, "");
+    return versions.isEmpty() ? Collections.emptyList() : Arrays.asList(versions.split(","));
+  }
+
+  /**
+   * Get the bin directory of the newest QtInstallerFramework, or <code>null</code>.
+   */
+  public final File getInstallerBin() {
+    List<String> versions = getInstallerVersions();
+    return versions.isEmpty() ? null
+        : QtToolIndex.getInstallerPath(this.home).resolve(versions.get(0)).resolve("bin").toFile();
+  }
+
+  /**
+   * Get the jom make tool, or <code>null</code>.
+   */
+  public final File getJom() {
+    String path = this.index.getProperty(QtToolIndex.JOM);
+    return (path == null) ? null : new File(path);
+  }
+
+  /**
+   * Returns <code>true</code> if none of the scanned directories has been modified.
+   */
+  private boolean isValid() {
+    for (String name : this.index.stringPropertyNames()) {
+      if (name.startsWith(QtToolIndex.MODIFIED)) {
+        Path path = Paths.get(name.substring(QtToolIndex.MODIFIED.length()));
+        if (!this.index.getProperty(name).equals(QtToolIndex.getModified(path))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the directory of the QtInstallerFramework versions.
+   *
+   * @param home
+   */
+  private static Path getInstallerPath(Path home) {
+    return home.getParent().resolve("Tools").resolve("QtInstallerFramework");
+  }
+
+  /**
+   * Get the modification time of a directory, or an empty text if it doesn't exist.
+   *
+   * @param path
+   */
+  private static String getModified(Path path) {
+    try {
+      return Files.isDirectory(path) ? String.valueOf(Files.getLastModifiedTime(path).toMillis()) : "";
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  /**
+   * Get the sub-directories of a directory.
+   *
+   * @param path
+   */
+  private static List<Path> list(Path path) throws IOException {
+    if (!Files.isDirectory(path)) {
+      return Collections.emptyList();
+    }
+    try (Stream<Path> stream = Files.list(path)) {
+      return stream.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Get the executables of a directory by their names, without the suffix on Windows.
+   *
+   * @param path
+   */
+  private static Map<String, Path> listExecutables(Path path) throws IOException {
+    Map<String, Path> executables = new TreeMap<>();
+    if (Files.isDirectory(path)) {
+      try (Stream<Path> stream = Files.list(path)) {
+        for (Path file : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+          String name = file.getFileName().toString();
+          if (Qt2.isWindows() ? name.endsWith(".exe") : Files.isExecutable(file)) {
+            executables.put(Qt2.isWindows() ? name.substring(0, name.length() - 4) : name, file);
+          }
+        }
+      }
+    }
+    return executables;
+  }
+
+  /**
+   * Compares versions by their numbers, e.g. 4.10 is newer than 4.9. Names without a version are
+   * the oldest.
+   */
+  protected static final Comparator<String> BY_VERSION = (v1, v2) -> {
+    Matcher m1 = QtToolIndex.VERSION.matcher(v1);
+    Matcher m2 = QtToolIndex.VERSION.matcher(v2);
+    String[] n1 = m1.find() ? m1.group().split("\\.") : new String[0];
+    String[] n2 = m2.find() ? m2.group().split("\\.") : new String[0];
+    for (int i = 0; i < Math.max(n1.length, n2.length); i++) {
+      long p1 = (i < n1.length) ? Long.parseLong(n1[i]) : 0;
+      long p2 = (i < n2.length) ? Long.parseLong(n2[i]) : 0;
+      if (p1 != p2) {
+        return Long.compare(p1, p2);
+      }
+    }
+    return (n1.length == n2.length) ? v1.compareTo(v2) : Integer.compare(n1.length, n2.length);
+  };
+
+  /**
+   * Scans the Qt installation.
+   *
+   * @param home
+   */
+  private static Properties scan(Path home) throws IOException {
+    Properties index = new Properties();
+    List<Path> scanned = new ArrayList<>();
+    scanned.add(home);
+
+    // The kits of QT_HOME, identified by qmake
+    for (Path kit : QtToolIndex.list(home)) {
+      Path bin = kit.resolve("bin");
+      Map<String, Path> tools = QtToolIndex.listExecutables(bin);
+      if (!tools.containsKey("qmake")) {
+        continue;
+      }
+      String arch = kit.getFileName().toString();
+      String spec = Stream.of(QtPlatform.values()).filter(p -> p.ARCH.equals(arch)).map(p -> p.SPEC).findFirst()
+          .orElse("");
+      index.setProperty(QtToolIndex.KIT + arch, spec);
+      tools.forEach((n, p) -> index.setProperty(QtToolIndex.TOOL + arch + "." + n, p.toString()));
+      scanned.add(bin);
+    }
+
+    // The QtInstallerFramework versions with a bin directory
+    Path installer = QtToolIndex.getInstallerPath(home);
+    List<String> versions = QtToolIndex.list(installer).stream().filter(p -> Files.isDirectory(p.resolve("bin")))
+        .map(p -> p.getFileName().toString()).sorted(QtToolIndex.BY_VERSION.reversed()).collect(Collectors.toList());
+    index.setProperty(QtToolIndex.IFW, String.join(",", versions));
+    scanned.add(installer);
+
+    // jom of the QtCreator
+    Path jom = home.getParent().resolve("Tools").resolve("QtCreator").resolve("bin").resolve("jom");
+    for (Path path : new Path[] { jom, jom.getParent() }) {
+      Path file = QtToolIndex.listExecutables(path).get("jom");
+      if (file != null) {
+        index.setProperty(QtToolIndex.JOM, file.toString());
+        break;
+      }
+    }
+    scanned.add(jom);
+    scanned.add(jom.getParent());
+
+    for (Path path : scanned) {
+      index.setProperty(QtToolIndex.MODIFIED + path, QtToolIndex.getModified(path));
+    }
+    return index;
+  }
+
+  /**
+   * Get the {@link QtToolIndex} of a Qt installation. The index is loaded from disk, or the
+   * installation is scanned if the index is missing or outdated.
+   *
+   * @param home
+   */
+  public static QtToolIndex of(File home) {
+    Path path = home.getAbsoluteFile().toPath().normalize();
+    QtToolIndex index = QtToolIndex.INDEXES.get(path);
+    if ((index != null) && index.isValid()) {
+      return index;
+    }
+
+    Path file = Paths.get(System.getProperty("user.home"), QtToolIndex.DIRECTORY,
+        Hash.sha256().update(path.toString()).toHex().substring(0, 16) + ".properties");
+    index = QtToolIndex.load(path, file);
+    if ((index == null) || !index.isValid()) {
+      try {
+        index = new QtToolIndex(path, QtToolIndex.scan(path));
+        QtToolIndex.store(index, file);
+      } catch (IOException e) {
+        // Without an index, the tools are resolved by their default paths
+        index = new QtToolIndex(path, new Properties());
+      }
+    }
+    QtToolIndex.INDEXES.put(path, index);
+    return index;
+  }
+
+  /**
+   * Loads the index from disk, or returns <code>null</code>.
+   *
+   * @param home
+   * @param file
+   */
+  private static QtToolIndex load(Path home, Path file) {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream stream = Files.newInputStream(file)) {
+      properties.load(stream);
+    } catch (IOException e) {
+      return null;
+    }
+    return new QtToolIndex(home, properties);
+  }
+
+  /**
+   * Stores the index on disk. The index is replaced atomically, as the agents may share it.
+   *
+   * @param index
+   * @param file
+   */
+  private static void store(QtToolIndex index, Path file) {
+    Path temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      Files.createDirectories(file.getParent());
+      try (OutputStream stream = Files.newOutputStream(temp)) {
+        index.index.store(stream, "Qt tools of " + index.home);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // The index is rebuilt on the next run
+    } finally {
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+}
@@ -19,22 +19,60 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import info.tol.gocd.task.qt.Qt;
 import info.tol.gocd.task.qt.Qt2;
+import info.tol.gocd.task.qt.QtAndroid;
+import info.tol.gocd.task.qt.QtArchiver;
+import info.tol.gocd.task.qt.QtBuildCache;
+import info.tol.gocd.task.qt.QtCompilerCache;
+import info.tol.gocd.task.qt.QtDeduplicator;
 import info.tol.gocd.task.qt.QtConfig;
+import info.tol.gocd.task.qt.QtContext;
+import info.tol.gocd.task.qt.QtFingerprint;
+import info.tol.gocd.task.qt.QtHistory;
 import info.tol.gocd.task.qt.QtInstaller;
+import info.tol.gocd.task.qt.QtJobs;
+import info.tol.gocd.task.qt.QtPublisher;
 import info.tol.gocd.task.qt.QtRepoGen;
+import info.tol.gocd.task.qt.QtRepoManifest;
+import info.tol.gocd.task.qt.QtStager;
+import info.tol.gocd.task.qt.QtTest;
+import info.tol.gocd.task.qt.QtTestCache;
+import info.tol.gocd.task.qt.QtTestReport;
+import info.tol.gocd.task.qt.QtTestSummary;
+import info.tol.gocd.task.qt.QtToolIndex;
 import info.tol.gocd.task.util.TaskRequest;
 import info.tol.gocd.task.util.TaskResponse;
+import info.tol.gocd.util.BufferedConsole;
 import info.tol.gocd.util.Environment;
+import info.tol.gocd.util.ProcessMonitor;
+import info.tol.gocd.util.Scheduler;
+import info.tol.gocd.util.ScriptEnvironment;
 import info.tol.gocd.util.request.RequestHandler;
 
 /**
@@ -74,7 +112,20 @@ public class TaskHandler implements RequestHandler {
   }
 
 
-  private final JobConsoleLogger console;
+  private static final String   CONSOLE_LOG = "qt-console.log.gz";
+  private static final String   RESOURCES   = "qt-resources.json";
+  private static final String   STAGING     = String.join(File.separator, "build", "packages");
+  private static final String   DEDUP       = String.join(File.separator, "build", "packages.dedup");
+
+  // The compression level of the packages, shared by the online and the offline installer
+  private static final int      SHARED_LEVEL = 6;
+
+  private final BufferedConsole console;
+
+  private final ProcessMonitor  monitor;
+
+  private QtCompilerCache       compilerCache;
+  private ScriptEnvironment     setup;
 
   /**
    * Constructs an instance of {@link TaskHandler}.
@@ -82,7 +133,8 @@ public class TaskHandler implements RequestHandler {
    * @param console
    */
   public TaskHandler(JobConsoleLogger console) {
-    this.console = console;
+    this.console = BufferedConsole.of(console);
+    this.monitor = new ProcessMonitor();
   }
 
 
@@ -100,70 +152,970 @@ public class TaskHandler implements RequestHandler {
     this.console.printEnvironment(task.getEnvironment().toMap());
 
     try {
-      switch (config.getBuild()) {
-        case "BUILD":
-          if (config.getTarget() == null) {
-            return TaskResponse.failure("No target defined").toResponse();
-          }
-
-          TaskResponse response = process(config, task, console, Build.QMAKE, null);
-          if (response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE) {
-            String targets = config.getTarget();
-            for (String t : targets.split(",")) {
-              response = process(config, task, console, Build.MAKE, t.trim());
-              if (response.responseCode() != DefaultGoApiResponse.SUCCESS_RESPONSE_CODE) {
-                return response.toResponse();
-              }
-            }
-            if (targets.endsWith(",")) {
-              response = process(config, task, console, Build.MAKE, "");
-              if (response.responseCode() != DefaultGoApiResponse.SUCCESS_RESPONSE_CODE) {
-                return response.toResponse();
-              }
-            }
-          }
-          return response.toResponse();
-
-        case "TEST":
-          return process(config, task, console, Build.TEST, config.getTarget()).toResponse();
-
-        case "REPOSITORY":
-          Process process = createRepogen(task, config.getPackages());
-          this.console.readErrorOf(process.getErrorStream());
-          this.console.readOutputOf(process.getInputStream());
-
-          int exitCode = process.waitFor();
-          process.destroy();
-          return (exitCode == 0) ? TaskResponse.success("Executed the build").toResponse()
-              : TaskResponse.failure("Could not execute build! Process returned with status code " + exitCode)
-                  .toResponse();
-
-
-        case "ONLINE":
-        case "OFFLINE":
-        case "INSTALLER":
-          process =
-              createInstaller(task, config.getTarget(), config.getBuild(), config.getCommand(), config.getPackages());
-          this.console.readErrorOf(process.getErrorStream());
-          this.console.readOutputOf(process.getInputStream());
-
-          exitCode = process.waitFor();
-          process.destroy();
-          return (exitCode == 0) ? TaskResponse.success("Executed the build").toResponse()
-              : TaskResponse.failure("Could not execute build! Process returned with status code " + exitCode)
-                  .toResponse();
-
-        default:
-          return TaskResponse.success("Nothing to do").toResponse();
+      this.monitor.setInterval(Qt2.getMonitorInterval(task, config));
+      if (Qt2.isBoundedConsole(task, config)) {
+        Path log = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath().resolve(TaskHandler.CONSOLE_LOG);
+        this.console.setBounded(log, Qt2.getConsoleTail(task, config));
+        this.console.printLine("Bounded console, the complete output is written to " + log);
       }
+
+      TaskResponse response = execute(task, config);
+      return reportTimings(task, response).toResponse();
     } catch (Throwable e) {
       if (e.getMessage() == null) {
         Arrays.asList(e.getStackTrace()).forEach(el -> this.console.printLine(el.toString()));
       }
       return TaskResponse.failure(e.getMessage()).toResponse();
+    } finally {
+      this.monitor.close();
+      try {
+        this.console.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+
+  /**
+   * Executes the build mode of the task.
+   *
+   * @param task
+   * @param config
+   */
+  private TaskResponse execute(TaskRequest task, QtConfig config) throws Exception {
+    switch (config.getBuild()) {
+      case "BUILD":
+        if (config.getTarget() == null) {
+          return TaskResponse.failure("No target defined");
+        }
+
+        this.compilerCache = QtCompilerCache.of(task.getEnvironment());
+        if (this.compilerCache != null) {
+          this.console.printLine("Compiler cache: " + this.compilerCache);
+        }
+
+        if (isCompilerCacheEnabled()) {
+          this.compilerCache.start();
+        }
+
+        this.setup = getSetupEnvironment(task);
+        List<String> specs = Qt2.getSpecs(task, config);
+        if (specs.size() > 1) {
+          return buildMatrix(config, QtContext.of(task), specs);
+        }
+        return buildCached(config, QtContext.of(task));
+
+      case "TEST":
+        this.setup = getSetupEnvironment(task);
+        return test(config, QtContext.of(task));
+
+      case "STAGE":
+        return stage(task, config);
+
+      case "REPOSITORY":
+        return repository(task, config);
+
+      case "ONLINE":
+      case "OFFLINE":
+      case "INSTALLER":
+        return installer(task, config);
+
+      case "PUBLISH":
+        return publish(task);
+
+      default:
+        return TaskResponse.success("Nothing to do");
+    }
+  }
+
+  /**
+   * Stages the build outputs into the packages, as defined by the mapping file of the target.
+   *
+   * @param task
+   * @param config
+   */
+  private TaskResponse stage(TaskRequest task, QtConfig config) throws IOException {
+    if ((config.getTarget() == null) || (config.getPackages() == null)) {
+      return TaskResponse.failure("No mapping file or packages defined");
+    }
+
+    long start = System.currentTimeMillis();
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    QtStager stager = QtStager.of(workingDir, workingDir.resolve(config.getPackages()));
+    int files = stager.stage(workingDir.resolve(config.getTarget()));
+    this.console.printLine(String.format(Locale.ROOT, "Staged %d files: %d linked, %d copied, %d unchanged",
+        files, stager.getLinked(), stager.getCopied(), stager.getUnchanged()));
+    this.console.printLine(String.format(Locale.ROOT, "Staged %.1f MB in %.1fs",
+        stager.getBytes() / (1024.0 * 1024.0), (System.currentTimeMillis() - start) / 1000.0));
+    return TaskResponse.success("Staged the packages");
+  }
+
+  /**
+   * Builds the repository. Only the packages, that changed since the last build of the repository,
+   * and the packages depending on them are updated.
+   *
+   * @param task
+   * @param config
+   */
+  private TaskResponse repository(TaskRequest task, QtConfig config) throws Exception {
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    QtRepoManifest manifest =
+        QtRepoManifest.of(workingDir.resolve(config.getPackages()), workingDir.resolve(Qt.PATH_REPOSITORY));
+    Set<String> changed = manifest.getChanged();
+    if (changed == null) {
+      this.console.printLine(String.format("Building the repository of %d packages", manifest.getPackages().size()));
+    } else if (changed.isEmpty()) {
+      this.console.printLine("The repository is up to date");
+      return TaskResponse.success("The repository is up to date");
+    } else {
+      this.console.printLine(String.format("Updating %d of %d packages: %s", changed.size(),
+          manifest.getPackages().size(), String.join(", ", changed)));
+    }
+
+    String packages = preparePackages(task, workingDir, config.getPackages(), -1);
+    Process process = createRepogen(task, packages, changed);
+    ProcessMonitor.Step step = this.monitor.start("repogen", process);
+    this.console.readErrorOf(process.getErrorStream());
+    this.console.readOutputOf(process.getInputStream());
+
+    int exitCode = process.waitFor();
+    this.monitor.stop(step);
+    process.destroy();
+    if (exitCode != 0) {
+      this.console.flush();
+      this.console.printTail("repogen");
+    } else {
+      manifest.store();
+    }
+    return (exitCode == 0) ? TaskResponse.success("Executed the build")
+        : TaskResponse.failure("Could not execute build! Process returned with status code " + exitCode);
+  }
+
+  /**
+   * Publishes the repository to {@link Qt2#QT_REPOSITORY} of the {@link Qt2#RELEASE}. Only the
+   * changed files are copied.
+   *
+   * @param task
+   */
+  private TaskResponse publish(TaskRequest task) throws IOException {
+    String release = task.getEnvironment().get(Qt2.RELEASE);
+    if (!task.getEnvironment().isSet(Qt2.QT_REPOSITORY) || (release == null)) {
+      return TaskResponse.failure("No " + Qt2.QT_REPOSITORY + " or " + Qt2.RELEASE + " defined");
+    }
+
+    long start = System.currentTimeMillis();
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    Path repository = workingDir.resolve(Qt.PATH_REPOSITORY);
+    if (!Files.isRegularFile(repository.resolve("Updates.xml"))) {
+      return TaskResponse.failure("No repository built in " + repository + ", run the REPOSITORY build first");
+    }
+
+    Path target = Paths.get(task.getEnvironment().get(Qt2.QT_REPOSITORY)).resolve(release);
+    QtPublisher publisher = QtPublisher.of(repository, target);
+    int files = publisher.publish();
+    this.console.printLine(String.format(Locale.ROOT, "Published %d of %d files to %s, %.1f MB", publisher.getCopied(),
+        files, target, publisher.getBytes() / (1024.0 * 1024.0)));
+    this.console.printLine(String.format(Locale.ROOT, "Deleted %d files in %.1fs", publisher.getDeleted(),
+        (System.currentTimeMillis() - start) / 1000.0));
+    return TaskResponse.success("Published the repository");
+  }
+
+  /**
+   * Replaces the identical files of the packages by hard links, if enabled by
+   * {@link Qt2#QT_DEDUP}, and prepares the component archives of the packages in the staging
+   * directory, if enabled by {@link Qt2#QT_ARCHIVE_LEVEL} or a default level. Only the packages,
+   * that changed since they have been staged, are archived again. Returns the packages directory
+   * for the Qt tools.
+   *
+   * @param task
+   * @param workingDir
+   * @param packages
+   * @param defaultLevel
+   */
+  private String preparePackages(TaskRequest task, Path workingDir, String packages, int defaultLevel)
+      throws Exception {
+    if (Qt2.isDeduplicate(task)) {
+      long start = System.currentTimeMillis();
+      QtDeduplicator deduplicator =
+          QtDeduplicator.of(workingDir.resolve(packages), workingDir.resolve(TaskHandler.DEDUP));
+      int files = deduplicator.deduplicate();
+      this.console.printLine(String.format(Locale.ROOT, "Linked %d of %d files, saved %.1f MB in %.1fs",
+          deduplicator.getLinked(), files, deduplicator.getSaved() / (1024.0 * 1024.0),
+          (System.currentTimeMillis() - start) / 1000.0));
+    }
+
+    int level = Qt2.getArchiveLevel(task, defaultLevel);
+    if (level < 0) {
+      return packages;
+    }
+
+    Path staging = workingDir.resolve(TaskHandler.STAGING);
+    QtRepoManifest manifest = QtRepoManifest.of(workingDir.resolve(packages), staging);
+    Set<String> changed = manifest.getChanged();
+    QtArchiver archiver = QtArchiver.of(workingDir.resolve(packages), staging, level, Qt2.getArchiveJobs(task));
+    List<String> names = manifest.getPackages().stream()
+        .filter(p -> (changed == null) || changed.contains(p) || !archiver.isStaged(p)).collect(Collectors.toList());
+    this.console.printLine(String.format("Archiving %d of %d packages with level %d", names.size(),
+        manifest.getPackages().size(), level));
+    archiver.archive(names, this.console::printLine);
+    manifest.store();
+    return TaskHandler.STAGING;
+  }
+
+  /**
+   * Builds the installer. The online and the offline installer are built concurrently with the
+   * suffixes <code>-online</code> and <code>-offline</code>, from the packages prepared once in the
+   * staging directory, so the packages are not compressed twice.
+   *
+   * @param task
+   * @param config
+   */
+  private TaskResponse installer(TaskRequest task, QtConfig config) throws Exception {
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    boolean both = "INSTALLER".equals(config.getBuild());
+    String packages =
+        preparePackages(task, workingDir, config.getPackages(), both ? TaskHandler.SHARED_LEVEL : -1);
+    if (!both) {
+      return runInstaller(task, config, config.getBuild(), config.getTarget(), packages, false);
+    }
+
+    Map<String, String> names = new LinkedHashMap<>();
+    names.put("ONLINE", TaskHandler.getInstallerName(config.getTarget(), "online"));
+    names.put("OFFLINE", TaskHandler.getInstallerName(config.getTarget(), "offline"));
+
+    Scheduler scheduler = Scheduler.of(names.size());
+    Map<String, TaskResponse> responses = new ConcurrentHashMap<>();
+    Map<String, Long> durations = new ConcurrentHashMap<>();
+    names.forEach((mode, name) -> scheduler.add(mode, () -> {
+      long start = System.currentTimeMillis();
+      responses.put(mode, runInstaller(task, config, mode, name, packages, true));
+      durations.put(mode, System.currentTimeMillis() - start);
+      return true;
+    }));
+
+    this.console.printLine("Building the online and offline installers concurrently");
+    scheduler.run();
+
+    List<String> failed = new ArrayList<>();
+    for (Map.Entry<String, String> entry : names.entrySet()) {
+      boolean ok = responses.get(entry.getKey()).responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
+      this.console.printLine(String.format("Installer %s (%s): %s in %ds", entry.getValue(),
+          entry.getKey().toLowerCase(), ok ? "succeeded" : "failed", durations.get(entry.getKey()) / 1000));
+      if (!ok) {
+        failed.add(entry.getValue());
+      }
+    }
+    return failed.isEmpty() ? TaskResponse.success("Built the online and offline installers")
+        : TaskResponse.failure("Could not build the installers " + String.join(", ", failed));
+  }
+
+  /**
+   * Runs the binarycreator for an installer. A grouped installer prints its output at once, so
+   * that the output of concurrent installers is not interleaved.
+   *
+   * @param task
+   * @param config
+   * @param mode
+   * @param name
+   * @param packages
+   * @param grouped
+   */
+  private TaskResponse runInstaller(TaskRequest task, QtConfig config, String mode, String name, String packages,
+      boolean grouped) throws IOException, InterruptedException {
+    File output = grouped ? File.createTempFile("qt-installer-", ".log") : null;
+    Process process = createInstaller(task, name, mode, config.getCommand(), packages, output);
+    ProcessMonitor.Step step = this.monitor.start(grouped ? "binarycreator " + name : "binarycreator", process);
+    if (!grouped) {
+      this.console.readErrorOf(process.getErrorStream());
+      this.console.readOutputOf(process.getInputStream());
+    }
+
+    int exitCode = -1;
+    try {
+      exitCode = process.waitFor();
+    } finally {
+      this.monitor.stop(step);
+      process.destroy();
+      if (output == null) {
+        this.console.flush();
+        if (exitCode != 0) {
+          this.console.printTail("binarycreator");
+        }
+      } else {
+        printGroup(this.console, name, output, exitCode);
+      }
+    }
+    return (exitCode == 0) ? TaskResponse.success("Executed the build")
+        : TaskResponse.failure("Could not execute build! Process returned with status code " + exitCode);
+  }
+
+  /**
+   * Get the name of an installer with a suffix, keeping the extension of the name, e.g.
+   * setup-online.exe.
+   *
+   * @param name
+   * @param suffix
+   */
+  private static String getInstallerName(String name, String suffix) {
+    Matcher matcher = Pattern.compile("(?i)(.*?)(\\.(exe|run|app|dmg|bin))?").matcher(name);
+    matcher.matches();
+    return matcher.group(1) + "-" + suffix + ((matcher.group(2) == null) ? "" : matcher.group(2));
+  }
+
+  /**
+   * Get the snapshot of the environment of the setup script, or <code>null</code> if no setup
+   * script is defined or the snapshot fails. Without a snapshot the setup script is called by each
+   * command.
+   *
+   * @param task
+   */
+  private ScriptEnvironment getSetupEnvironment(TaskRequest task) throws InterruptedException {
+    Path script = Qt2.getSetupScript(task);
+    if (script == null) {
+      return null;
+    }
+
+    try {
+      ScriptEnvironment snapshot =
+          ScriptEnvironment.of(script, Qt2.getSetupArguments(task), task.getEnvironment().toMap());
+      this.console.printLine(String.format("Setup environment of %s: %d variables%s", script, snapshot.size(),
+          snapshot.isCached() ? " (cached)" : ""));
+      return snapshot;
+    } catch (IOException e) {
+      this.console.printLine("Could not take a snapshot of the setup script: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Prints the timings and resources of the steps and compares them with the history of the
+   * previous builds. The task fails, if a step is slower than the threshold
+   * {@link Qt2#QT_TIMING_FAIL}. The resources are written as JSON to the working directory.
+   *
+   * @param task
+   * @param response
+   */
+  private TaskResponse reportTimings(TaskRequest task, TaskResponse response) {
+    List<ProcessMonitor.Step> steps = this.monitor.getSteps();
+    if (steps.isEmpty()) {
+      return response;
+    }
+
+    this.console.printLine("Resources of the steps:");
+    this.monitor.getTable().forEach(this.console::printLine);
+    try {
+      this.monitor.write(new File(task.getWorkingDirectory()).toPath().resolve(TaskHandler.RESOURCES));
+    } catch (IOException e) {
+      this.console.printLine("Could not write the resources: " + e.getMessage());
+    }
+
+    QtHistory history = QtHistory.of(task.getEnvironment());
+    try {
+      history.compare(steps).forEach(this.console::printLine);
+      history.append(steps);
+    } catch (IOException e) {
+      this.console.printLine("Could not update the timing history: " + e.getMessage());
+    }
+
+    if (history.getFailures().isEmpty() || (response.responseCode() != DefaultGoApiResponse.SUCCESS_RESPONSE_CODE)) {
+      return response;
+    }
+    return TaskResponse
+        .failure("Steps are slower than the timing history: " + String.join(", ", history.getFailures()));
+  }
+
+
+  /**
+   * Builds a matrix of specs concurrently. Each entry has its own Makefile directory
+   * <code>build/&lt;spec&gt;/make</code> and its own outputs in <code>build/&lt;spec&gt;</code>. The
+   * architectures are either shared by all specs, or defined for each spec.
+   *
+   * @param config
+   * @param context
+   * @param specs
+   */
+  private TaskResponse buildMatrix(QtConfig config, QtContext context, List<String> specs) throws Exception {
+    TaskRequest task = context.getRequest();
+    List<String> archs = Qt2.getArchs(task, config);
+    if ((archs.size() != 1) && (archs.size() != specs.size())) {
+      return TaskResponse.failure(String.format("%s must define one architecture or one for each of the %d specs",
+          Qt2.QT_ARCH, specs.size()));
+    }
+
+    Path base = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath().resolve("build");
+    Scheduler scheduler = Scheduler.of(specs.size());
+    Map<String, TaskResponse> responses = new ConcurrentHashMap<>();
+    Map<String, Long> durations = new ConcurrentHashMap<>();
+    for (int index = 0; index < specs.size(); index++) {
+      String spec = specs.get(index);
+      String arch = archs.get((archs.size() == 1) ? 0 : index);
+      Path directory = base.resolve(spec).resolve("make");
+
+      Map<String, String> params = new HashMap<>();
+      params.put(Qt2.QT_SPEC, spec);
+      params.put(Qt2.QT_ARCH, arch);
+      QtContext build = context.derive(spec, directory.toFile(), params, specs.size());
+      scheduler.add(spec, () -> {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(directory);
+        TaskResponse response = buildCached(config, build);
+        responses.put(spec, response);
+        durations.put(spec, System.currentTimeMillis() - start);
+        return response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
+      });
+    }
+
+    this.console.printLine("Building the specs " + String.join(", ", specs) + " concurrently");
+    boolean success = scheduler.run();
+    for (int index = 0; index < specs.size(); index++) {
+      String spec = specs.get(index);
+      String arch = archs.get((archs.size() == 1) ? 0 : index);
+      String result = "cancelled";
+      if (responses.containsKey(spec)) {
+        boolean ok = responses.get(spec).responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
+        result = String.format("%s in %ds", ok ? "succeeded" : "failed", durations.get(spec) / 1000);
+      }
+      this.console.printLine(String.format("Matrix %s (%s): %s", spec, arch, result));
+    }
+    return success ? TaskResponse.success("Executed the build") : responses.get(scheduler.getFailed().get(0));
+  }
+
+  /**
+   * Builds a single spec, or restores it from the {@link QtBuildCache}. The cache is not used for
+   * multiple Android ABIs, as their merged layout is outside of the cached outputs.
+   *
+   * @param config
+   * @param context
+   */
+  private TaskResponse buildCached(QtConfig config, QtContext context) throws Exception {
+    TaskRequest task = context.getRequest();
+    String prefix = (context.getName() == null) ? "" : context.getName() + ": ";
+    List<String> abis = QtAndroid.getAbis(task.getEnvironment().get(Qt2.ANDROID_ABIS));
+    QtBuildCache buildCache = getBuildCache(config, task);
+    if ((buildCache != null) && (abis.size() > 1)) {
+      // The merged layout of the Android ABIs is not part of the cached outputs
+      this.console.printLine(prefix + "Build cache disabled for the Android ABIs " + String.join(", ", abis));
+      buildCache = null;
+    }
+    if ((buildCache != null) && buildCache.restore()) {
+      this.console.printLine(prefix + "Build cache hit (" + buildCache.getKey() + "), restored the build outputs");
+      return TaskResponse.success("Restored the build from the cache");
+    } else if (buildCache != null) {
+      this.console.printLine(prefix + "Build cache miss (" + buildCache.getKey() + ")");
+    }
+
+    TaskResponse response = (Qt2.isSplitAbis(task, config) && (abis.size() > 1)) ? buildAbis(config, context, abis)
+        : build(config, context);
+    if ((buildCache != null) && (response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE)) {
+      try {
+        buildCache.store();
+        this.console.printLine(prefix + "Build cache stored (" + buildCache.getKey() + ")");
+      } catch (IOException e) {
+        this.console.printLine(prefix + "Build cache not stored: " + e.getMessage());
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Get the {@link QtBuildCache} for the build outputs, or <code>null</code> if it is not enabled.
+   *
+   * @param config
+   * @param task
+   */
+  private QtBuildCache getBuildCache(QtConfig config, TaskRequest task) throws IOException {
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    List<String> arguments = new ArrayList<>(Qt2.getConfig(task, config));
+    arguments.add(task.getEnvironment().get(Qt2.ANDROID_ABIS));
+    arguments.add(config.getCommand());
+    arguments.add(config.getTarget());
+    return QtBuildCache.of(task.getEnvironment(), workingDir, Qt2.getSpec(task, config), Qt2.getArch(task, config),
+        arguments, getQMake(task, config));
+  }
+
+  /**
+   * Builds the Android ABIs concurrently, each with its own qmake and make in
+   * <code>build/&lt;spec&gt;/android-&lt;abi&gt;</code>. The ABI builds are merged into the layout
+   * androiddeployqt expects.
+   *
+   * @param config
+   * @param context
+   * @param abis
+   */
+  private TaskResponse buildAbis(QtConfig config, QtContext context, List<String> abis) throws Exception {
+    TaskRequest task = context.getRequest();
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    Path base = workingDir.resolve("build").resolve(Qt2.getSpec(task, config));
+
+    Scheduler scheduler = Scheduler.of(abis.size());
+    Map<String, Path> builds = new LinkedHashMap<>();
+    Map<String, TaskResponse> responses = new ConcurrentHashMap<>();
+    for (String abi : abis) {
+      Path directory = base.resolve("android-" + abi);
+      builds.put(abi, directory);
+
+      Map<String, String> params = Collections.singletonMap(Qt2.ANDROID_ABIS, abi);
+      QtContext build = context.derive(abi, directory.toFile(), params, abis.size());
+      scheduler.add(abi, () -> {
+        Files.createDirectories(directory);
+        TaskResponse response = build(config, build);
+        responses.put(abi, response);
+        return response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
+      });
+    }
+
+    this.console.printLine("Building the Android ABIs " + String.join(", ", abis) + " concurrently");
+    if (!scheduler.run()) {
+      return responses.get(scheduler.getFailed().get(0));
+    }
+
+    int files = QtAndroid.merge(workingDir, builds);
+    this.console.printLine(String.format("Merged %d files of the Android ABIs into %s", files, workingDir));
+    return TaskResponse.success("Executed the build");
+  }
+
+  /**
+   * Runs qmake and make for a single build.
+   *
+   * @param config
+   * @param context
+   */
+  private TaskResponse build(QtConfig config, QtContext context) throws Exception {
+    TaskResponse response = qmake(config, context);
+    if (response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE) {
+      response = make(config, context, config.getTarget());
+    }
+    return response;
+  }
+
+  /**
+   * Runs qmake, unless the {@link QtFingerprint} of the project configuration is unchanged.
+   *
+   * @param config
+   * @param context
+   */
+  private TaskResponse qmake(QtConfig config, QtContext context) throws IOException, InterruptedException {
+    TaskRequest task = context.getRequest();
+    Path workingDir = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath();
+    List<String> arguments = new ArrayList<>(Qt2.getConfig(task, config));
+    if (isCompilerCacheEnabled()) {
+      arguments.addAll(this.compilerCache.getQMakeArguments());
+    }
+    QtFingerprint fingerprint = QtFingerprint.of(workingDir, context.getDirectory().toPath(), config.getCommand(),
+        context.isShadowBuild(), Qt2.getSpec(task, config), arguments, task.getEnvironment().get(Qt2.ANDROID_ABIS),
+        getQMake(task, config));
+
+    String prefix = (context.getName() == null) ? "" : context.getName() + ": ";
+    if (fingerprint.isUnchanged()) {
+      this.console.printLine(prefix + "qmake fingerprint hit (" + fingerprint + "), skipping qmake");
+      return TaskResponse.success("Project configuration is unchanged");
+    }
+
+    this.console.printLine(prefix + "qmake fingerprint miss (" + fingerprint + "), running qmake");
+    fingerprint.clear();
+    TaskResponse response =
+        process(config, context, console, Build.QMAKE, null, null, context.getName() != null);
+    if (response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE) {
+      fingerprint.store();
+    }
+    return response;
+  }
+
+  /**
+   * Builds the comma separated make targets. Each entry may define an ordering with '>', e.g.
+   * "core>gui,docs" builds gui after core, while docs is build concurrently. A trailing comma
+   * builds the default target after all others.
+   *
+   * @param config
+   * @param context
+   * @param targets
+   */
+  private TaskResponse make(QtConfig config, QtContext context, String targets) throws Exception {
+    TaskRequest task = context.getRequest();
+    Scheduler scheduler = Scheduler.of(Qt2.getParallelTargets(task, config));
+    boolean grouped = (scheduler.getLimit() > 1) || (context.getName() != null);
+
+    int builds = Math.min(scheduler.getLimit(), targets.split("[,>]").length) * context.getBuilds();
+    QtJobs jobs = QtJobs.of(task.getEnvironment()).share(builds);
+    String prefix = (context.getName() == null) ? "" : context.getName() + ": ";
+    this.console.printLine(prefix + "Make jobs: " + jobs);
+
+    Map<String, TaskResponse> responses = new ConcurrentHashMap<>();
+    for (String entry : targets.split(",")) {
+      String before = null;
+      for (String name : entry.split(">")) {
+        String target = name.trim();
+        // The empty name is reserved for the default target of a trailing comma
+        if (target.isEmpty()) {
+          continue;
+        }
+        scheduler.add(target, () -> {
+          TaskResponse response = process(config, context, console, Build.MAKE, target, jobs, grouped);
+          responses.put(target, response);
+          printCompilerCache(TaskHandler.getLabel(context, target));
+          return response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
+        });
+        if (before != null) {
+          scheduler.addOrder(before, target);
+        }
+        before = target;
+      }
+    }
+
+    if (targets.endsWith(",")) {
+      for (String name : targets.split("[,>]")) {
+        if (!name.trim().isEmpty()) {
+          scheduler.addOrder(name.trim(), "");
+        }
+      }
+      scheduler.add("", () -> {
+        TaskResponse response = process(config, context, console, Build.MAKE, "", jobs, grouped);
+        responses.put("", response);
+        printCompilerCache(TaskHandler.getLabel(context, ""));
+        return response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
+      });
+    }
+
+    if (scheduler.getLimit() > 1) {
+      this.console.printLine(prefix + "Building targets with up to " + scheduler.getLimit() + " concurrent jobs");
+    }
+    if (scheduler.run()) {
+      return TaskResponse.success("Executed the build");
     }
+    return responses.get(scheduler.getFailed().get(0));
   }
 
+  /**
+   * Runs the tests. A single test executable runs as before. If the test is empty or a glob pattern,
+   * all matching test executables of <code>build/&lt;spec&gt;/bin</code> run concurrently, each
+   * isolated by {@link QtTest} with its own directories and result file. If
+   * {@link Qt2#QT_TEST_SHARDS} is set, the test functions of each test executable are split into
+   * balanced shards, which run as concurrent processes and their reports are merged. A passed test,
+   * also a single test, is replayed from the {@link QtTestCache}, if neither the test nor its
+   * libraries have changed.
+   * The failed test functions run again, up to {@link Qt2#QT_TEST_RETRIES} times. All tests run,
+   * even if some fail.
+   *
+   * @param config
+   * @param context
+   */
+  private TaskResponse test(QtConfig config, QtContext context) throws Exception {
+    TaskRequest task = context.getRequest();
+    String testCase = config.getCommand();
+    if ((testCase == null) || testCase.trim().isEmpty()) {
+      testCase = config.getTarget();
+    }
+    Path base = new File(task.getWorkingDirectory()).getAbsoluteFile().toPath().resolve("build")
+        .resolve(Qt2.getSpec(task, config));
+    int shards = Qt2.getTestShards(task, config);
+    if (!QtTest.isPattern(testCase) && (shards < 2) && (Qt2.getTestRetries(task, config) == 0)) {
+      Path results = base.resolve("test-results").resolve(testCase + ".xml");
+      QtTestCache testCache = QtTestCache.of(task.getEnvironment(), base);
+      Path executable = QtTest.getExecutable(base.resolve("bin"), testCase);
+      String key = ((testCache != null) && Files.isRegularFile(executable)) ? testCache.getKey(executable) : null;
+      if ((key != null) && testCache.restore(key, results)) {
+        this.console.printLine(String.format("---- %s [cached] passed (%s) ----", testCase, key.substring(0, 12)));
+        printTestSummary(base, Collections.singletonList(testCase));
+        return TaskResponse.success("Replayed the test from the cache");
+      }
+
+      Files.createDirectories(results.getParent());
+      Files.deleteIfExists(results);
+      QtContext run = context.withArguments(Arrays.asList("-o", results + ",xunitxml", "-o", "-,txt"));
+      TaskResponse response = process(config, run, console, Build.TEST, testCase);
+      if ((key != null) && (response.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE)
+          && Files.isRegularFile(results)) {
+        testCache.store(key, results);
+      }
+      printTestSummary(base, Collections.singletonList(testCase));
+      return response;
+    }
+
+    List<String> tests = QtTest.isPattern(testCase) ? QtTest.find(base.resolve("bin"), testCase)
+        : Collections.singletonList(testCase);
+    if (tests.isEmpty()) {
+      return TaskResponse.failure("No test found in " + base.resolve("bin"));
+    }
+
+    Map<String, TaskResponse> responses = new ConcurrentHashMap<>();
+    Map<String, String> keys = new HashMap<>();
+    QtTestCache testCache = QtTestCache.of(task.getEnvironment(), base);
+    if (testCache != null) {
+      for (String test : tests) {
+        Path executable = QtTest.getExecutable(base.resolve("bin"), test);
+        if (!Files.isRegularFile(executable)) {
+          continue;
+        }
+        String key = testCache.getKey(executable);
+        if (testCache.restore(key, base.resolve("test-results").resolve(test + ".xml"))) {
+          this.console.printLine(String.format("---- %s [cached] passed (%s) ----", test, key.substring(0, 12)));
+          responses.put(test, TaskResponse.success("Replayed the test from the cache"));
+        } else {
+          keys.put(test, key);
+        }
+      }
+    }
+    List<String> pending = tests.stream().filter(t -> !responses.containsKey(t)).collect(Collectors.toList());
+
+    Map<String, Double> durations = QtTest.readDurations(base);
+    Map<String, List<List<String>>> functions = new ConcurrentHashMap<>();
+    if (shards > 1) {
+      Scheduler planner = Scheduler.of(Qt2.getTestJobs(task, config));
+      for (String test : pending) {
+        planner.add(test, () -> {
+          List<String> list = listFunctions(config, context, test);
+          functions.put(test, QtTest.split(test, list, durations, shards));
+          return true;
+        });
+      }
+      planner.run();
+    }
+
+    Scheduler scheduler = Scheduler.of(Qt2.getTestJobs(task, config));
+    for (String test : pending) {
+      Path results = base.resolve("test-results").resolve(test + ".xml");
+      List<List<String>> groups = functions.getOrDefault(test, Collections.emptyList());
+      if (groups.size() < 2) {
+        Path directory = base.resolve("tests").resolve(test);
+        scheduler.add(test, () -> {
+          TaskResponse response = runTest(config, context, test, test, directory, results, Collections.emptyList());
+          responses.put(test, retryTest(config, context, test, base, results, response));
+          return true;
+        });
+        continue;
+      }
+
+      List<Path> parts = new ArrayList<>();
+      Map<String, TaskResponse> shardResponses = new ConcurrentHashMap<>();
+      for (int index = 0; index < groups.size(); index++) {
+        String shard = String.format("%s[%d/%d]", test, index + 1, groups.size());
+        Path directory = base.resolve("tests").resolve(test + "-" + (index + 1));
+        Path part = directory.resolve("results.xml");
+        List<String> group = groups.get(index);
+        parts.add(part);
+        scheduler.add(shard, () -> {
+          shardResponses.put(shard, runTest(config, context, shard, test, directory, part, group));
+          return true;
+        });
+        scheduler.addOrder(shard, test);
+      }
+      scheduler.add(test, () -> {
+        QtTestReport.merge(test, parts, results);
+        boolean ok = shardResponses.values().stream()
+            .allMatch(r -> r.responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE);
+        TaskResponse response = ok ? TaskResponse.success("Executed the test")
+            : TaskResponse.failure("Could not execute the test " + test);
+        responses.put(test, retryTest(config, context, test, base, results, response));
+        return true;
+      });
+      this.console.printLine(String.format("Test %s: %d functions in %d shards", test,
+          groups.stream().mapToInt(List::size).sum(), groups.size()));
+    }
+
+    this.console.printLine(
+        String.format("Running %d tests with up to %d concurrent jobs", pending.size(), scheduler.getLimit()));
+    scheduler.run();
+
+    for (String test : pending) {
+      Path results = base.resolve("test-results").resolve(test + ".xml");
+      TaskHandler.getDurations(results).forEach((f, d) -> durations.put(QtTest.getKey(test, f), d));
+      if (keys.containsKey(test) && (responses.get(test).responseCode() == DefaultGoApiResponse.SUCCESS_RESPONSE_CODE)
+          && Files.isRegularFile(results)) {
+        testCache.store(keys.get(test), results);
+      }
+    }
+    QtTest.storeDurations(base, durations);
+    printTestSummary(base, tests);
+
+    List<String> failed = tests.stream()
+        .filter(t -> responses.get(t).responseCode() != DefaultGoApiResponse.SUCCESS_RESPONSE_CODE)
+        .collect(Collectors.toList());
+    this.console.printLine(String.format("Tests: %d passed (%d cached), %d failed", tests.size() - failed.size(),
+        tests.size() - pending.size(), failed.size()));
+    if (!failed.isEmpty()) {
+      this.console.printLine("Failed tests: " + String.join(", ", failed));
+      return TaskResponse.failure(String.format("%d of %d tests failed", failed.size(), tests.size()));
+    }
+    return TaskResponse.success("Executed the tests");
+  }
+
+  /**
+   * Converts the reports of the tests into the JUnit format for GoCD, in
+   * <code>build/&lt;spec&gt;/test-results/junit</code>, and prints a summary of the test functions.
+   *
+   * @param base
+   * @param tests
+   */
+  private void printTestSummary(Path base, List<String> tests) {
+    Path junit = base.resolve("test-results").resolve("junit");
+    QtTestSummary summary = new QtTestSummary();
+    for (String test : tests) {
+      Path results = base.resolve("test-results").resolve(test + ".xml");
+      if (Files.isRegularFile(results)) {
+        try {
+          QtTestReport.toJUnit(test, results, junit.resolve("TEST-" + test + ".xml"));
+          summary.add(test, results);
+        } catch (IOException e) {
+          this.console.printLine("Could not read the test report " + results + ": " + e.getMessage());
+        }
+      }
+    }
+    summary.getLines().forEach(this.console::printLine);
+  }
+
+  /**
+   * Runs a test executable, or a shard with the given test functions, isolated in its directory.
+   *
+   * @param config
+   * @param context
+   * @param name
+   * @param test
+   * @param directory
+   * @param results
+   * @param functions
+   */
+  private TaskResponse runTest(QtConfig config, QtContext context, String name, String test, Path directory,
+      Path results, List<String> functions) throws IOException, InterruptedException {
+    List<String> arguments = new ArrayList<>(functions);
+    arguments.addAll(Arrays.asList("-o", results + ",xunitxml", "-o", "-,txt"));
+    QtContext run =
+        context.derive(name, directory.toFile(), QtTest.getEnvironment(directory), 1).withArguments(arguments);
+
+    QtTest.prepare(directory);
+    Files.createDirectories(results.getParent());
+    Files.deleteIfExists(results);
+    return process(config, run, console, Build.TEST, test, null, true);
+  }
+
+  /**
+   * Runs the failed test functions of a test again, up to {@link Qt2#QT_TEST_RETRIES} times. The
+   * results of an attempt replace those of the failed functions in the report, so that the last
+   * attempt decides. The special functions, e.g. initTestCase, run on each attempt and are replaced
+   * as well. If the failed functions are unknown, e.g. after a crash, the whole test runs again.
+   * The functions, that passed on a retry, are noted in the report.
+   *
+   * @param config
+   * @param context
+   * @param test
+   * @param base
+   * @param results
+   * @param response
+   */
+  private TaskResponse retryTest(QtConfig config, QtContext context, String test, Path base, Path results,
+      TaskResponse response) throws IOException, InterruptedException {
+    int retries = Qt2.getTestRetries(context.getRequest(), config);
+    for (int attempt = 1; (attempt <= retries)
+        && (response.responseCode() != DefaultGoApiResponse.SUCCESS_RESPONSE_CODE); attempt++) {
+      List<String> failures = TaskHandler.getFailures(results);
+      boolean whole = failures.isEmpty() || failures.stream().anyMatch(QtTest::isSpecial);
+      this.console.printLine(String.format("Test %s: running %s again (retry %d of %d)", test,
+          whole ? "all functions" : String.join(", ", failures), attempt, retries));
+
+      String name = String.format("%s[retry %d/%d]", test, attempt, retries);
+      Path directory = base.resolve("tests").resolve(test + "-retry-" + attempt);
+      Path part = directory.resolve("results.xml");
+      response = runTest(config, context, name, test, directory, part, whole ? Collections.emptyList() : failures);
+
+      List<String> passed = new ArrayList<>(whole ? Collections.emptyList() : failures);
+      passed.removeAll(Files.isRegularFile(part) ? TaskHandler.getFailures(part) : failures);
+      String note = passed.isEmpty() ? null : "Passed on retry " + attempt + ": " + String.join(", ", passed);
+      if (whole) {
+        QtTestReport.merge(test, Collections.singletonList(part), Collections.emptyMap(), note, results);
+      } else {
+        // The special functions of the retry replace those of the report
+        Set<String> replaced = new HashSet<>(failures);
+        if (Files.isRegularFile(part)) {
+          QtTestReport.read(results, t -> {
+            if (QtTest.isSpecial(t.getName())) {
+              replaced.add(t.getName());
+            }
+          });
+        }
+        QtTestReport.merge(test, Arrays.asList(results, part), Collections.singletonMap(results, replaced), note,
+            results);
+      }
+      if (note != null) {
+        this.console.printLine("Test " + test + ": " + note);
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Get the failed test functions of a report, or an empty list if the report can't be read.
+   *
+   * @param report
+   */
+  private static List<String> getFailures(Path report) {
+    try {
+      return QtTestReport.getFailures(report);
+    } catch (IOException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Get the durations of the test functions of a report, or an empty map if the report can't be
+   * read, e.g. the truncated report of a crashed test.
+   *
+   * @param report
+   */
+  private static Map<String, Double> getDurations(Path report) {
+    try {
+      return QtTestReport.getDurations(report);
+    } catch (IOException e) {
+      return Collections.emptyMap();
+    }
+  }
+
+  /**
+   * Lists the test functions of a test executable. An empty list is returned, if the test
+   * functions can't be listed.
+   *
+   * @param config
+   * @param context
+   * @param test
+   */
+  private List<String> listFunctions(QtConfig config, QtContext context, String test)
+      throws IOException, InterruptedException {
+    QtContext list = context.withArguments(Collections.singletonList("-functions"));
+    ProcessBuilder builder = createProcess(config, list, Build.TEST, test, null);
+    builder.redirectErrorStream(true);
+
+    List<String> lines = new ArrayList<>();
+    Process process = builder.start();
+    try {
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+        reader.lines().forEach(lines::add);
+      }
+      return (process.waitFor() == 0) ? QtTest.getFunctions(lines) : Collections.emptyList();
+    } finally {
+      process.destroy();
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the compilation is send through a compiler cache.
+   */
+  private boolean isCompilerCacheEnabled() {
+    return (this.compilerCache != null) && this.compilerCache.isEnabled();
+  }
+
+  /**
+   * Prints the statistics of the compiler cache after a make target.
+   *
+   * @param target
+   */
+  private void printCompilerCache(String target) {
+    if (isCompilerCacheEnabled()) {
+      QtCompilerCache.Statistics statistics = this.compilerCache.getStatistics();
+      if (statistics != null) {
+        this.console.printLine(String.format("Compiler cache after %s: %s", target, statistics));
+      }
+    }
+  }
 
   /**
    * Process a single build.
@@ -174,26 +1126,144 @@ public class TaskHandler implements RequestHandler {
    * @param build
    * @param target
    */
-  private TaskResponse process(QtConfig config, TaskRequest request, JobConsoleLogger console, Build build,
+  private TaskResponse process(QtConfig config, QtContext context, JobConsoleLogger console, Build build,
       String target) throws IOException, InterruptedException {
-    ProcessBuilder builder = createCommand(request, config, build, target);
-    builder.directory(new File(request.getWorkingDirectory()));
-    builder.environment().putAll(request.getEnvironment().toMap());
-    updateEnvironment(builder, request, config);
+    return process(config, context, console, build, target, null, false);
+  }
 
-    console.printLine("Launching command: " + builder.command());
+  /**
+   * Process a single build. A grouped build collects the output of the process and prints it at
+   * once, so that the output of concurrent builds is not interleaved.
+   *
+   * @param config
+   * @param context
+   * @param console
+   * @param build
+   * @param target
+   * @param jobs
+   * @param grouped
+   */
+  private TaskResponse process(QtConfig config, QtContext context, JobConsoleLogger console, Build build,
+      String target, QtJobs jobs, boolean grouped) throws IOException, InterruptedException {
+    ProcessBuilder builder = createProcess(config, context, build, target, jobs);
+    console.printLine("Launching command: " + TaskHandler.toCommandLine(builder.command()));
     console.printEnvironment(builder.environment());
 
+    File output = null;
+    if (grouped) {
+      output = File.createTempFile("qt-make-", ".log");
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(output);
+    }
+
     Process process = builder.start();
-    console.readErrorOf(process.getErrorStream());
-    console.readOutputOf(process.getInputStream());
+    ProcessMonitor.Step step = this.monitor.start(TaskHandler.getPhase(context, build, target), process);
+    if (!grouped) {
+      console.readErrorOf(process.getErrorStream());
+      console.readOutputOf(process.getInputStream());
+    }
 
-    int exitCode = process.waitFor();
-    process.destroy();
+    int exitCode = -1;
+    try {
+      exitCode = process.waitFor();
+    } finally {
+      this.monitor.stop(step);
+      process.destroy();
+      if (output == null) {
+        this.console.flush();
+        if (exitCode != 0) {
+          this.console.printTail(TaskHandler.getLabel(context, (build == Build.QMAKE) ? "qmake" : target));
+        }
+      } else {
+        String name = (build == Build.TEST) ? context.getName()
+            : TaskHandler.getLabel(context, (build == Build.QMAKE) ? "qmake" : target);
+        printGroup(console, name, output, exitCode);
+      }
+    }
     return (exitCode == 0) ? TaskResponse.success("Executed the build")
         : TaskResponse.failure("Could not execute build! Process returned with status code " + exitCode);
   }
 
+  /**
+   * Prints the collected output of a grouped process at once and deletes the output.
+   *
+   * @param console
+   * @param name
+   * @param output
+   * @param exitCode
+   */
+  private void printGroup(JobConsoleLogger console, String name, File output, int exitCode) throws IOException {
+    String status = (exitCode == 0) ? "finished" : "failed with status code " + exitCode;
+    synchronized (console) {
+      console.printLine("---- " + name + " ----");
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(new FileInputStream(output), Charset.defaultCharset()))) {
+        reader.lines().forEach(this.console::printOutput);
+      }
+      if (exitCode != 0) {
+        this.console.printTail(name);
+      }
+      console.printLine("---- " + name + " " + status + " ----");
+    }
+    output.delete();
+  }
+
+
+  /**
+   * Create the {@link ProcessBuilder} of a build, with the directory and the environment of the
+   * build.
+   *
+   * @param config
+   * @param context
+   * @param build
+   * @param target
+   * @param jobs
+   */
+  private ProcessBuilder createProcess(QtConfig config, QtContext context, Build build, String target,
+      QtJobs jobs) {
+    TaskRequest request = context.getRequest();
+    ProcessBuilder builder = createCommand(context, config, build, target, jobs);
+    builder.directory(context.getDirectory());
+    builder.environment().putAll(request.getEnvironment().toMap());
+    if (this.setup != null) {
+      this.setup.apply(builder.environment());
+    }
+    updateEnvironment(builder, request, config);
+    if (build == Build.TEST) {
+      TaskHandler.updateLibraryPath(builder.environment(), request, config);
+    }
+    TaskHandler.resolveExecutable(builder);
+    return builder;
+  }
+
+  /**
+   * Get the label of a target for the console.
+   *
+   * @param context
+   * @param target
+   */
+  private static String getLabel(QtContext context, String target) {
+    String name = (target == null) || target.isEmpty() ? "(default)" : target;
+    return (context.getName() == null) ? name : context.getName() + ": " + name;
+  }
+
+  /**
+   * Get the name of the phase of a build, for the timings.
+   *
+   * @param context
+   * @param build
+   * @param target
+   */
+  private static String getPhase(QtContext context, Build build, String target) {
+    switch (build) {
+      case QMAKE:
+        return TaskHandler.getLabel(context, "qmake");
+      case TEST:
+        return "test " + ((context.getName() == null) ? target : context.getName());
+      default:
+        return "make " + TaskHandler.getLabel(context, target);
+    }
+  }
 
   /**
    * Create the {@link ProcessBuilder} with the command.
@@ -202,78 +1272,147 @@ public class TaskHandler implements RequestHandler {
    * @param config
    * @param build
    * @param target
+   * @param jobs
    */
-  private ProcessBuilder createCommand(TaskRequest task, QtConfig config, Build build, String target) {
+  private ProcessBuilder createCommand(QtContext context, QtConfig config, Build build, String target,
+      QtJobs jobs) {
+    TaskRequest task = context.getRequest();
     File workingDir = new File(task.getWorkingDirectory());
     Qt qt = Qt.of(workingDir, task.getEnvironment());
 
     boolean isWindows = Qt2.isWindows();
     List<String> args = new ArrayList<>();
-    if (isWindows) {
-      args.add(qt.getVcVarsAll());
-      args.add("x86_amd64");
-      args.add("&");
-    }
-
-    String qtHome = task.getEnvironment().get(Qt2.QT_HOME);
     switch (build) {
       case QMAKE:
-        Path path = Paths.get(Qt2.getArch(task, config), "bin", "qmake");
-
-        args.add(new File(qtHome, path.toString()).getAbsolutePath());
+        args.add(getQMake(task, config).getAbsolutePath());
         args.add("-spec");
         args.add(Qt2.getSpec(task, config));
 
         String abis = task.getEnvironment().get(Qt2.ANDROID_ABIS);
         if (abis != null && !abis.trim().isEmpty()) {
-          args.add(String.format("%s=\"%s\"", Qt2.ANDROID_ABIS, abis));
+          args.add(String.format("%s=%s", Qt2.ANDROID_ABIS, abis));
         }
 
         // Adding CONFIG+=
         Qt2.getConfig(task, config).forEach(c -> args.add("CONFIG+=" + c));
 
-        args.add(config.getCommand());
+        String project = config.getCommand();
+        args.add(context.isShadowBuild() ? new File(workingDir, project).getAbsolutePath() : project);
+        if (isCompilerCacheEnabled()) {
+          args.addAll(this.compilerCache.getQMakeArguments());
+        }
         break;
 
       case TEST:
-        String arch = Qt2.getArch(task, config);
         String spec = Qt2.getSpec(task, config);
-
-        path = Paths.get(arch, "bin");
-        String bin = new File(qtHome, path.toString()).getAbsolutePath();
-        String lib = Paths.get(task.getWorkingDirectory(), "build", spec, "lib").toFile().getAbsolutePath();
-        if (isWindows) {
-          args.add("set PATH=" + bin + ";" + lib + ";%PATH%");
-          args.add("&");
-        } else {
-          args.add("LD_LIBRARY_PATH=$LD_LIBRARY_PATH:" + bin + ":" + lib);
-        }
-
-        String testCase = config.getCommand();
-        if ((testCase == null) || testCase.trim().isEmpty()) {
-          testCase = config.getTarget();
-        }
+        String testCase = target;
         if (isWindows) {
           testCase += ".exe";
         }
 
         Path test = Paths.get(task.getWorkingDirectory(), "build", spec, "bin");
         args.add(new File(test.toFile(), testCase).getAbsolutePath());
-        args.add("-xunitxml");
+        if (context.getArguments().isEmpty()) {
+          args.add("-xunitxml");
+        } else {
+          args.addAll(context.getArguments());
+        }
         break;
 
       case MAKE:
         args.add(qt.getMakeTool());
+        if ((jobs != null) && (jobs.getArgument() != null)) {
+          args.add(jobs.getArgument());
+        }
         if ((target != null) && !target.isEmpty()) {
           args.add(target);
         }
         break;
     }
 
-    String cmd = isWindows ? "cmd" : "sh";
-    String cmdArg = isWindows ? "/c" : "-c";
-    String argument = String.join(" ", args);
-    return new ProcessBuilder(cmd, cmdArg, argument);
+    // Without a snapshot of its environment, the setup script is called by a shell
+    Path script = Qt2.getSetupScript(task);
+    if ((this.setup == null) && (script != null)) {
+      List<String> setup = new ArrayList<>();
+      setup.add(script.toAbsolutePath().toString());
+      setup.addAll(Qt2.getSetupArguments(task));
+      String argument = (isWindows ? "" : ". ") + TaskHandler.toCommandLine(setup) + (isWindows ? " & " : " && ")
+          + TaskHandler.toCommandLine(args);
+      return isWindows ? new ProcessBuilder("cmd", "/c", argument) : new ProcessBuilder("sh", "-c", argument);
+    }
+    return new ProcessBuilder(args);
+  }
+
+  /**
+   * Get the command line of the arguments, quoted for the shell.
+   *
+   * @param args
+   */
+  private static String toCommandLine(List<String> args) {
+    boolean isWindows = Qt2.isWindows();
+    String plain = isWindows ? "[\\w\\-+=/.,:@%\\\\]+" : "[\\w\\-+=/.,:@%]+";
+    return args.stream().map(a -> {
+      if (!a.isEmpty() && a.matches(plain)) {
+        return a;
+      }
+      return isWindows ? "\"" + a + "\"" : "'" + a.replace("'", "'\\''") + "'";
+    }).collect(Collectors.joining(" "));
+  }
+
+  /**
+   * Adds the Qt libraries and the libraries of the build to the library path of a test. On Windows
+   * the libraries are found by the PATH.
+   *
+   * @param environment
+   * @param task
+   * @param config
+   */
+  private static void updateLibraryPath(Map<String, String> environment, TaskRequest task, QtConfig config) {
+    String bin = Paths.get(task.getEnvironment().get(Qt2.QT_HOME), Qt2.getArch(task, config), "bin").toFile()
+        .getAbsolutePath();
+    String lib = Paths.get(task.getWorkingDirectory(), "build", Qt2.getSpec(task, config), "lib").toFile()
+        .getAbsolutePath();
+    String name = Qt2.isWindows() ? "PATH" : "LD_LIBRARY_PATH";
+    String path = environment.get(name);
+    List<String> paths = Qt2.isWindows() ? Arrays.asList(bin, lib, path) : Arrays.asList(path, bin, lib);
+    environment.put(name, paths.stream().filter(p -> (p != null) && !p.isEmpty())
+        .collect(Collectors.joining(File.pathSeparator)));
+  }
+
+  /**
+   * Resolves the executable of a command by the PATH of its environment, as the process would be
+   * found by the PATH of the agent otherwise.
+   *
+   * @param builder
+   */
+  private static void resolveExecutable(ProcessBuilder builder) {
+    String executable = builder.command().get(0);
+    String path = builder.environment().get("PATH");
+    if ((path == null) || new File(executable).isAbsolute() || executable.contains(File.separator)) {
+      return;
+    }
+    for (String directory : path.split(File.pathSeparator)) {
+      for (String name : Qt2.isWindows() ? Arrays.asList(executable + ".exe", executable) : Arrays.asList(executable)) {
+        File file = new File(directory, name);
+        if (file.isFile() && file.canExecute()) {
+          builder.command().set(0, file.getAbsolutePath());
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the qmake binary of the Qt architecture.
+   *
+   * @param task
+   * @param config
+   */
+  private File getQMake(TaskRequest task, QtConfig config) {
+    String arch = Qt2.getArch(task, config);
+    File home = new File(task.getEnvironment().get(Qt2.QT_HOME));
+    File qmake = QtToolIndex.of(home).getTool(arch, "qmake");
+    return (qmake == null) ? new File(home, Paths.get(arch, "bin", "qmake").toString()) : qmake;
   }
 
   /**
@@ -301,37 +1440,47 @@ public class TaskHandler implements RequestHandler {
     builder.environment().put(Qt2.QT_BUILD, buildPath.toString());
     builder.environment().put(Qt2.QML2_IMPORT_PATH, base.resolve("qml").toString());
     builder.environment().put(Qt2.QT_PLUGIN_PATH, base.resolve("plugins").toString());
+
+    if (isCompilerCacheEnabled()) {
+      this.compilerCache.updateEnvironment(builder.environment());
+    }
   }
 
 
   /**
-   * Create an repository generator.
+   * Create an repository generator. Without modules the complete repository is updated.
    *
    * @param task
-   * @param task
+   * @param packages
+   * @param modules
    */
-  protected Process createRepogen(TaskRequest task, String packages) throws IOException {
+  protected Process createRepogen(TaskRequest task, String packages, Collection<String> modules)
+      throws IOException {
     File workingDir = new File(task.getWorkingDirectory());
 
     QtRepoGen builder = QtRepoGen.of(workingDir, task.getEnvironment());
     builder.setUpdate();
-    // builder.addModules(TaskHandler.toModules(source, task.getWorkingDirectory(),
-    // task.getEnvironment()));
+    if (modules != null) {
+      builder.addModules(TaskHandler.toModules(String.join(",", modules), packages, task.getWorkingDirectory(),
+          task.getEnvironment()));
+    }
     builder.setPackagePath(packages);
     builder.setRepositoryPath(Qt.PATH_REPOSITORY);
     return builder.build();
   }
 
   /**
-   * Create an installer.
+   * Create an installer. The output of the installer is written to the output file, if defined.
    *
    * @param task
    * @param name
    * @param build
    * @param config
+   * @param packages
+   * @param output
    */
-  protected Process createInstaller(TaskRequest task, String name, String build, String config, String packages)
-      throws IOException {
+  protected Process createInstaller(TaskRequest task, String name, String build, String config, String packages,
+      File output) throws IOException {
     File workingDir = new File(task.getWorkingDirectory());
 
     QtInstaller builder = QtInstaller.of(workingDir, task.getEnvironment());
@@ -343,7 +1492,7 @@ public class TaskHandler implements RequestHandler {
 
     builder.log(this.console);
 
-    return builder.build();
+    return (output == null) ? builder.build() : builder.build(output);
   }
 
   /**
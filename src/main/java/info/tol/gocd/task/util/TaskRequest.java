@@ -18,6 +18,7 @@ package info.tol.gocd.task.util;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 
 import java.io.StringReader;
+import java.util.Map;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -55,8 +56,28 @@ public class TaskRequest {
 
   private String            workingDirectory;
 
-  private final TaskConfig  config      = new TaskConfig();
-  private final Environment environment = new Environment();
+  private final TaskConfig  config;
+  private final Environment environment;
+
+  /**
+   * Constructs an instance of {@link TaskRequest}.
+   */
+  public TaskRequest() {
+    this(null, new TaskConfig(), new Environment());
+  }
+
+  /**
+   * Constructs an instance of {@link TaskRequest}.
+   *
+   * @param workingDirectory
+   * @param config
+   * @param environment
+   */
+  private TaskRequest(String workingDirectory, TaskConfig config, Environment environment) {
+    this.workingDirectory = workingDirectory;
+    this.config = config;
+    this.environment = environment;
+  }
 
   /**
    * Gets the working directory.
@@ -93,6 +114,15 @@ public class TaskRequest {
     }
   }
 
+  /**
+   * Constructs a copy of the {@link TaskRequest}, with additional environment variables.
+   *
+   * @param params
+   */
+  public final TaskRequest clone(Map<String, String> params) {
+    return new TaskRequest(this.workingDirectory, this.config, this.environment.clone(params));
+  }
+
   public static TaskRequest of(GoPluginApiRequest request) {
     TaskRequest taskRequest = new TaskRequest();
     taskRequest.parse(request.requestBody());
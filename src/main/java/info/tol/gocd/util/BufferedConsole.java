@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The {@link BufferedConsole} pumps the output to the {@link JobConsoleLogger} of GoCD in batches.
+ * The lines are queued and written by a single thread, as soon as a batch is full or the flush
+ * interval has passed.
+ *
+ * The output of processes is read by separate threads, which block only shortly: if the queue
+ * stays full, e.g. because the upload of the agent is slow, the lines overflow into a temporary
+ * file, so that a child process never stalls on a full pipe. The overflow is printed in order, as
+ * soon as the queue is empty. The lines of the task itself are queued directly.
+ *
+ * The environment is only printed with the variables, that differ from the environment printed
+ * before.
+ *
+ * In the bounded mode, the complete output of the processes is written to a compressed log file,
+ * while the console only receives the first occurrence of each line. Repeated lines, e.g. the same
+ * warning of a header, are counted. The last lines are kept in a ring buffer, which is printed if
+ * a process fails. As the log is complete, lines are dropped instead of overflowing, if the queue
+ * stays full.
+ */
+public class BufferedConsole extends JobConsoleLogger {
+
+  private static final int         CAPACITY   = 10000;
+  private static final int         BATCH_SIZE = 64 * 1024;
+  private static final long        INTERVAL   = 200;
+  private static final long        TIMEOUT    = 10000;
+  private static final long        BLOCKING   = 100;
+  private static final int         REPEATS    = 100000;
+  private static final int         TOP        = 5;
+
+
+  private final JobConsoleLogger      console;
+  private final BlockingQueue<Object> queue   = new ArrayBlockingQueue<>(BufferedConsole.CAPACITY);
+  private final AtomicLong            dropped = new AtomicLong();
+  private final List<Thread>          readers = new ArrayList<>();
+  private final Thread                writer;
+
+  private Map<String, String>         environment;
+  private volatile boolean            closed;
+
+  // Overflow of the process output
+  private final Object                overflow = new Object();
+  private Path                        overflowFile;
+  private Writer                      overflowWriter;
+  private BufferedReader              overflowReader;
+  private long                        overflowWritten;
+  private long                        overflowRead;
+
+  // Bounded mode
+  private final Object                lock    = new Object();
+  private final Map<String, Integer>  repeats = new HashMap<>();
+  private final Deque<String>         tail    = new ArrayDeque<>();
+  private Path                        logFile;
+  private Writer                      log;
+  private int                         tailSize;
+  private long                        lines;
+  private long                        suppressed;
+
+  /**
+   * Constructs an instance of {@link BufferedConsole}.
+   *
+   * @param console
+   */
+  private BufferedConsole(JobConsoleLogger console) {
+    this.console = console;
+    this.writer = new Thread(this::write, "console-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Prints a line of the task. The line is never dropped.
+   *
+   * @param line
+   */
+  @Override
+  public void printLine(String line) {
+    put(line);
+  }
+
+  /**
+   * Prints a line of the output of a process. In the bounded mode, the line is logged and repeated
+   * lines are suppressed.
+   *
+   * @param line
+   */
+  public void printOutput(String line) {
+    if (accept(line)) {
+      put(line);
+    }
+  }
+
+  /**
+   * Enables the bounded mode. The complete output of the processes is written to the gzip
+   * compressed log file.
+   *
+   * @param file
+   * @param tailSize
+   */
+  public final void setBounded(Path file, int tailSize) throws IOException {
+    synchronized (this.lock) {
+      this.logFile = file;
+      this.log = new BufferedWriter(
+          new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8));
+      this.tailSize = tailSize;
+    }
+  }
+
+  /**
+   * Prints the last lines of the output, in the bounded mode. The last lines are printed
+   * completely, even if they were suppressed as repeated lines.
+   *
+   * @param label
+   */
+  public final void printTail(String label) {
+    List<String> copy;
+    synchronized (this.lock) {
+      if (this.log == null) {
+        return;
+      }
+      copy = new ArrayList<>(this.tail);
+    }
+    put(String.format("---- last %d lines of %s ----", copy.size(), label));
+    copy.forEach(this::put);
+  }
+
+  /**
+   * Reads the error stream of a process in the background.
+   *
+   * @param stream
+   */
+  @Override
+  public void readErrorOf(InputStream stream) {
+    read(stream, "console-error");
+  }
+
+  /**
+   * Reads the output stream of a process in the background.
+   *
+   * @param stream
+   */
+  @Override
+  public void readOutputOf(InputStream stream) {
+    read(stream, "console-output");
+  }
+
+  /**
+   * Prints the variables of the environment, that are new or differ from the environment printed
+   * before. The variables are printed by GoCD, which masks the secure variables.
+   *
+   * @param environment
+   */
+  @Override
+  public void printEnvironment(Map<String, String> environment) {
+    Map<String, String> changed = new TreeMap<>();
+    TreeSet<String> removed = new TreeSet<>();
+    synchronized (this) {
+      if (this.environment == null) {
+        changed.putAll(environment);
+      } else {
+        environment.forEach((k, v) -> {
+          if (!Objects.equals(v, this.environment.get(k))) {
+            changed.put(k, v);
+          }
+        });
+        this.environment.keySet().stream().filter(k -> !environment.containsKey(k)).forEach(removed::add);
+      }
+      this.environment = new HashMap<>(environment);
+    }
+
+    if (!changed.isEmpty()) {
+      put(changed);
+    }
+    if (!removed.isEmpty()) {
+      put("Removed environment variables: " + String.join(", ", removed));
+    }
+  }
+
+  /**
+   * Waits until the process streams are read and all queued lines are written.
+   */
+  public final void flush() throws InterruptedException {
+    List<Thread> threads;
+    synchronized (this.readers) {
+      threads = new ArrayList<>(this.readers);
+      this.readers.clear();
+    }
+    // A stream stays open, if the process started a child, that is still running
+    for (Thread thread : threads) {
+      thread.join(BufferedConsole.TIMEOUT);
+    }
+
+    CountDownLatch latch = new CountDownLatch(1);
+    put(latch);
+    latch.await(BufferedConsole.TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes all queued lines and stops the writer.
+   */
+  public final void close() throws InterruptedException {
+    flush();
+    closeLog();
+    this.closed = true;
+    this.writer.interrupt();
+    this.writer.join(BufferedConsole.TIMEOUT);
+  }
+
+  /**
+   * Prints the summary of the bounded mode and closes the log file.
+   */
+  private void closeLog() {
+    synchronized (this.lock) {
+      if (this.log == null) {
+        return;
+      }
+      try {
+        this.log.close();
+      } catch (IOException e) {
+        put("Could not write the console log: " + e.getMessage());
+      }
+      this.log = null;
+
+      put(String.format("Console: %d of %d output lines suppressed as repeated, the complete output is in %s",
+          this.suppressed, this.lines, this.logFile));
+      this.repeats.entrySet().stream().filter(e -> e.getValue() > 1)
+          .sorted(Collections.reverseOrder(Map.Entry.comparingByValue())).limit(BufferedConsole.TOP)
+          .forEach(e -> put(String.format("  %6dx %s", e.getValue(), e.getKey())));
+    }
+  }
+
+  /**
+   * Accepts a line of the output of a process for the console. In the bounded mode the line is
+   * logged and kept in the ring buffer, but only accepted if it was not printed before.
+   *
+   * @param line
+   */
+  private boolean accept(String line) {
+    synchronized (this.lock) {
+      if (this.log == null) {
+        return true;
+      }
+      try {
+        this.log.write(line);
+        this.log.write('\n');
+      } catch (IOException e) {
+        // The console has the output up to the error
+      }
+
+      this.lines++;
+      this.tail.addLast(line);
+      if (this.tail.size() > this.tailSize) {
+        this.tail.removeFirst();
+      }
+
+      if (line.trim().isEmpty()) {
+        return true;
+      }
+      Integer count = this.repeats.get(line);
+      if (count != null) {
+        this.repeats.put(line, count + 1);
+        this.suppressed++;
+        return false;
+      } else if (this.repeats.size() < BufferedConsole.REPEATS) {
+        this.repeats.put(line, 1);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Queues a line or the environment of the task. Waits if the queue is full.
+   *
+   * @param item
+   */
+  private void put(Object item) {
+    try {
+      this.queue.put(item);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns <code>true</code> in the bounded mode.
+   */
+  private boolean isBounded() {
+    synchronized (this.lock) {
+      return this.log != null;
+    }
+  }
+
+  /**
+   * Queues a line of a process in the bounded mode. The line is dropped, if the queue is full, as
+   * the log file has the complete output.
+   *
+   * @param line
+   */
+  private void offerOrDrop(String line) throws InterruptedException {
+    long count = this.dropped.get();
+    if ((count > 0) && this.queue.offer(String.format("[%d lines dropped, the console is too slow]", count))) {
+      this.dropped.addAndGet(-count);
+    }
+    if (!this.queue.offer(line, (count > 0) ? 0 : BufferedConsole.BLOCKING, TimeUnit.MILLISECONDS)) {
+      this.dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Queues a line of a process. If the queue is full or lines have overflowed before, the line is
+   * appended to the overflow file, so that the order is kept. The line waits for the queue, if the
+   * overflow file can't be written.
+   *
+   * @param line
+   */
+  private void offerOrOverflow(String line) throws InterruptedException {
+    synchronized (this.overflow) {
+      if ((this.overflowWritten == this.overflowRead)
+          && this.queue.offer(line, BufferedConsole.BLOCKING, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+      try {
+        if (this.overflowWriter == null) {
+          this.overflowFile = Files.createTempFile("console-", ".log");
+          this.overflowWriter = Files.newBufferedWriter(this.overflowFile, StandardCharsets.UTF_8);
+          this.overflowReader = Files.newBufferedReader(this.overflowFile, StandardCharsets.UTF_8);
+        }
+        this.overflowWriter.write(line);
+        this.overflowWriter.write('\n');
+        this.overflowWriter.flush();
+        this.overflowWritten++;
+        return;
+      } catch (IOException e) {
+        if (this.overflowWritten > this.overflowRead) {
+          // The overflow file is printed first, the line must not overtake it
+          this.dropped.incrementAndGet();
+          return;
+        }
+      }
+    }
+    this.queue.put(line);
+  }
+
+  /**
+   * Prints the lines of the overflow file in batches, until it is empty. The file is removed
+   * afterwards.
+   *
+   * @param batch
+   */
+  private void drainOverflow(StringBuilder batch) {
+    while (true) {
+      String line;
+      synchronized (this.overflow) {
+        if (this.overflowWriter == null) {
+          return;
+        }
+        try {
+          line = (this.overflowWritten > this.overflowRead) ? this.overflowReader.readLine() : null;
+        } catch (IOException e) {
+          line = null;
+        }
+        if (line == null) {
+          this.dropped.addAndGet(this.overflowWritten - this.overflowRead);
+          closeOverflow();
+          return;
+        }
+        this.overflowRead++;
+      }
+
+      if (batch.length() > 0) {
+        batch.append('\n');
+      }
+      batch.append(line);
+      if (batch.length() >= BufferedConsole.BATCH_SIZE) {
+        writeBatch(batch);
+      }
+    }
+  }
+
+  /**
+   * Closes and removes the overflow file. Must be called with the overflow lock.
+   */
+  private void closeOverflow() {
+    try {
+      this.overflowWriter.close();
+      this.overflowReader.close();
+      Files.deleteIfExists(this.overflowFile);
+    } catch (IOException e) {
+      // The temporary file is left
+    }
+    this.overflowWriter = null;
+    this.overflowReader = null;
+    this.overflowWritten = 0;
+    this.overflowRead = 0;
+  }
+
+  /**
+   * Reads the lines of a stream in a background thread. The lines overflow into a temporary file,
+   * or are dropped in the bounded mode, if the queue is full.
+   *
+   * @param stream
+   * @param name
+   */
+  private void read(InputStream stream, String name) {
+    Thread thread = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!accept(line)) {
+            continue;
+          }
+          if (isBounded()) {
+            offerOrDrop(line);
+          } else {
+            offerOrOverflow(line);
+          }
+        }
+      } catch (IOException e) {
+        put(name + ": " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, name);
+    thread.setDaemon(true);
+    synchronized (this.readers) {
+      this.readers.add(thread);
+    }
+    thread.start();
+  }
+
+  /**
+   * Writes the queued lines in batches, until the console is closed.
+   */
+  private void write() {
+    StringBuilder batch = new StringBuilder();
+    long deadline = 0;
+    while (!this.closed || !this.queue.isEmpty()) {
+      Object item;
+      try {
+        long timeout = (batch.length() == 0) ? BufferedConsole.INTERVAL : deadline - System.currentTimeMillis();
+        item = this.queue.poll(Math.max(1, timeout), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        item = this.queue.poll();
+      }
+
+      if (item instanceof String) {
+        if (batch.length() == 0) {
+          deadline = System.currentTimeMillis() + BufferedConsole.INTERVAL;
+        } else {
+          batch.append('\n');
+        }
+        batch.append((String) item);
+      } else if (item instanceof CountDownLatch) {
+        // A flush waits for the overflow, that has been read before
+        drainOverflow(batch);
+        writeBatch(batch);
+        writeItem(item);
+      } else if (item != null) {
+        writeBatch(batch);
+        writeItem(item);
+      }
+
+      // The overflow follows the lines, that have been queued before
+      if (this.queue.isEmpty()) {
+        drainOverflow(batch);
+      }
+
+      if ((batch.length() >= BufferedConsole.BATCH_SIZE)
+          || ((batch.length() > 0) && (System.currentTimeMillis() >= deadline))) {
+        writeBatch(batch);
+      }
+    }
+    drainOverflow(batch);
+    writeBatch(batch);
+
+    long count = this.dropped.getAndSet(0);
+    if (count > 0) {
+      this.console.printLine(String.format("[%d lines dropped, the console is too slow]", count));
+    }
+  }
+
+  /**
+   * Writes a batch of lines at once.
+   *
+   * @param batch
+   */
+  private void writeBatch(StringBuilder batch) {
+    if (batch.length() > 0) {
+      this.console.printLine(batch.toString());
+      batch.setLength(0);
+    }
+  }
+
+  /**
+   * Writes an environment or releases a waiting {@link #flush()}.
+   *
+   * @param item
+   */
+  @SuppressWarnings("unchecked")
+  private void writeItem(Object item) {
+    if (item instanceof CountDownLatch) {
+      ((CountDownLatch) item).countDown();
+    } else if (item instanceof Map) {
+      this.console.printEnvironment((Map<String, String>) item);
+    }
+  }
+
+  /**
+   * Constructs an instance of {@link BufferedConsole}.
+   *
+   * @param console
+   */
+  public static BufferedConsole of(JobConsoleLogger console) {
+    return new BufferedConsole(console);
+  }
+}
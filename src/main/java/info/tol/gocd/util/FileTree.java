@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The {@link FileTree} provides operations on directory trees.
+ */
+public class FileTree {
+
+  /**
+   * Constructs an instance of {@link FileTree}.
+   */
+  private FileTree() {}
+
+  /**
+   * Get the sorted regular files of a directory tree. Hidden directories and the excluded
+   * directories are skipped.
+   *
+   * @param root
+   * @param excluded
+   */
+  public static List<Path> list(Path root, Collection<Path> excluded) throws IOException {
+    List<Path> files = new ArrayList<>();
+    if (!Files.isDirectory(root)) {
+      return files;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        boolean hidden = !dir.equals(root) && dir.getFileName().toString().startsWith(".");
+        return (hidden || excluded.contains(dir)) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile()) {
+          files.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Adds the relative paths and the contents of all files of a directory tree to the {@link Hash}.
+   *
+   * @param hash
+   * @param root
+   * @param excluded
+   */
+  public static Hash hash(Hash hash, Path root, Collection<Path> excluded) throws IOException {
+    return FileTree.hash(hash, root, excluded, f -> true);
+  }
+
+  /**
+   * Adds the relative paths and the contents of the accepted files of a directory tree to the
+   * {@link Hash}.
+   *
+   * @param hash
+   * @param root
+   * @param excluded
+   * @param filter
+   */
+  public static Hash hash(Hash hash, Path root, Collection<Path> excluded, Predicate<Path> filter)
+      throws IOException {
+    for (Path file : FileTree.list(root, excluded)) {
+      if (filter.test(file)) {
+        hash.update(root.relativize(file).toString().replace('\\', '/')).update(file);
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Get the size in bytes of all files of a directory tree.
+   *
+   * @param root
+   */
+  public static long size(Path root) throws IOException {
+    long size = 0;
+    for (Path file : FileTree.list(root, Collections.emptyList())) {
+      size += Files.size(file);
+    }
+    return size;
+  }
+
+  /**
+   * Copies a directory tree. If <code>link</code> is set, the files are hard linked and only copied
+   * if a link is not possible, e.g. on a different file system.
+   *
+   * @param source
+   * @param target
+   * @param link
+   */
+  public static void copy(Path source, Path target, boolean link) throws IOException {
+    Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        FileTree.copyFile(file, target.resolve(source.relativize(file).toString()), link);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Copies a single file, replacing an existing target. Symbolic links are copied as links.
+   *
+   * @param source
+   * @param target
+   * @param link
+   */
+  public static void copyFile(Path source, Path target, boolean link) throws IOException {
+    Files.deleteIfExists(target);
+    if (link && !Files.isSymbolicLink(source)) {
+      try {
+        Files.createLink(target, source);
+        return;
+      } catch (IOException | UnsupportedOperationException e) {
+        // fall back to a copy
+      }
+    }
+    Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  /**
+   * Deletes a directory tree.
+   *
+   * @param root
+   */
+  public static void delete(Path root) throws IOException {
+    if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The {@link Hash} calculates a SHA-256 digest over texts and file contents.
+ */
+public class Hash {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+  private final MessageDigest digest;
+
+  /**
+   * Constructs an instance of {@link Hash}.
+   *
+   * @param digest
+   */
+  private Hash(MessageDigest digest) {
+    this.digest = digest;
+  }
+
+  /**
+   * Adds a text to the digest. Each text is terminated, so that "ab","c" differs from "a","bc".
+   *
+   * @param text
+   */
+  public final Hash update(String text) {
+    this.digest.update(String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+    this.digest.update((byte) 0);
+    return this;
+  }
+
+  /**
+   * Adds the content of a file to the digest.
+   *
+   * @param file
+   */
+  public final Hash update(Path file) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream stream = Files.newInputStream(file)) {
+      int length;
+      while ((length = stream.read(buffer)) > 0) {
+        this.digest.update(buffer, 0, length);
+      }
+    }
+    this.digest.update((byte) 0);
+    return this;
+  }
+
+  /**
+   * Get the digest as hexadecimal text. The {@link Hash} is reset afterwards.
+   */
+  public final String toHex() {
+    byte[] bytes = this.digest.digest();
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = Hash.HEX[(bytes[i] >> 4) & 0xf];
+      chars[(2 * i) + 1] = Hash.HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Constructs a SHA-256 {@link Hash}.
+   */
+  public static Hash sha256() {
+    try {
+      return new Hash(MessageDigest.getInstance("SHA-256"));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Calculates the SHA-256 digest of a file.
+   *
+   * @param file
+   */
+  public static String of(Path file) throws IOException {
+    return Hash.sha256().update(file).toHex();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@link Host} provides the resources of the machine the agent is running on. On Linux the
+ * limits of the cgroup are respected.
+ */
+public class Host {
+
+  private static final Path CGROUP    = Paths.get("/sys/fs/cgroup");
+  private static final Path MEMINFO   = Paths.get("/proc/meminfo");
+
+  private static final long UNLIMITED = -1;
+
+  /**
+   * Constructs an instance of {@link Host}.
+   */
+  private Host() {}
+
+  /**
+   * Get the number of processors available to the JVM.
+   */
+  public static int getProcessors() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Get the CPU quota of the cgroup as number of processors, or a negative value if unlimited.
+   */
+  public static double getCpuQuota() {
+    // cgroup v2: "<quota> <period>" or "max <period>"
+    String[] max = Host.read(Host.CGROUP.resolve("cpu.max")).split("\\s+");
+    if (max.length == 2) {
+      return "max".equals(max[0]) ? UNLIMITED : Host.toDouble(max[0]) / Host.toDouble(max[1]);
+    }
+
+    // cgroup v1
+    for (String name : new String[] { "cpu", "cpu,cpuacct" }) {
+      Path path = Host.CGROUP.resolve(name);
+      double quota = Host.toDouble(Host.read(path.resolve("cpu.cfs_quota_us")));
+      double period = Host.toDouble(Host.read(path.resolve("cpu.cfs_period_us")));
+      if ((quota > 0) && (period > 0)) {
+        return quota / period;
+      }
+    }
+    return UNLIMITED;
+  }
+
+  /**
+   * Get the memory in bytes that is available for new processes, or a negative value if unknown.
+   */
+  public static long getAvailableMemory() {
+    long available = UNLIMITED;
+    for (String line : Host.readLines(Host.MEMINFO)) {
+      if (line.startsWith("MemAvailable:")) {
+        available = (long) Host.toDouble(line.replaceAll("[^0-9]", "")) * 1024;
+      }
+    }
+
+    if (available < 0) {
+      OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+      if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+        available = ((com.sun.management.OperatingSystemMXBean) bean).getFreePhysicalMemorySize();
+      }
+    }
+
+    // cgroup v2 and v1 memory limits
+    long limit = (long) Host.toDouble(Host.read(Host.CGROUP.resolve("memory.max")));
+    long usage = (long) Host.toDouble(Host.read(Host.CGROUP.resolve("memory.current")));
+    if (limit <= 0) {
+      limit = (long) Host.toDouble(Host.read(Host.CGROUP.resolve("memory").resolve("memory.limit_in_bytes")));
+      usage = (long) Host.toDouble(Host.read(Host.CGROUP.resolve("memory").resolve("memory.usage_in_bytes")));
+    }
+    // cgroup v1 reports a huge value if unlimited
+    if ((limit > 0) && (limit < Long.MAX_VALUE / 2)) {
+      long free = Math.max(0, limit - Math.max(0, usage));
+      available = (available < 0) ? free : Math.min(available, free);
+    }
+    return available;
+  }
+
+  /**
+   * Reads the first line of a file, or an empty text.
+   *
+   * @param path
+   */
+  private static String read(Path path) {
+    List<String> lines = Host.readLines(path);
+    return lines.isEmpty() ? "" : lines.get(0).trim();
+  }
+
+  /**
+   * Reads the lines of a file, or an empty list.
+   *
+   * @param path
+   */
+  private static List<String> readLines(Path path) {
+    try {
+      return Files.isReadable(path) ? Files.readAllLines(path, StandardCharsets.UTF_8)
+          : Collections.emptyList();
+    } catch (IOException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Parses a number, or returns a negative value.
+   *
+   * @param text
+   */
+  private static double toDouble(String text) {
+    try {
+      return Double.parseDouble(text.trim());
+    } catch (NumberFormatException e) {
+      return UNLIMITED;
+    }
+  }
+}
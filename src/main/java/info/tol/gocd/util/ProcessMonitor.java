@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+
+/**
+ * The {@link ProcessMonitor} measures the steps of a task. A step is the lifetime of a process,
+ * with the wall-clock time and the resources of the process and all its descendants: the CPU time,
+ * the peak resident memory and the bytes read from and written to the storage.
+ *
+ * The resources are sampled from <code>/proc</code> while the process runs. The process tree is
+ * found by the parent pids of <code>/proc/&lt;pid&gt;/stat</code>. The CPU time and the I/O of
+ * the children are added to their parent, when the parent has waited for them, so the cumulative
+ * values of the living tree never decrease. On systems without <code>/proc</code> the resources
+ * are unknown.
+ */
+public class ProcessMonitor {
+
+  private static final long   INTERVAL   = 1000;
+  // The clock ticks per second of /proc, which is 100 on all common Linux systems
+  private static final long   CLOCK_TICK = 100;
+
+  private static final Path   PROC       = Paths.get("/proc");
+
+
+  private final List<Step>    steps      = new ArrayList<>();
+  private final Set<Step>     running    = ConcurrentHashMap.newKeySet();
+
+  private volatile long       interval   = ProcessMonitor.INTERVAL;
+  private Thread              sampler;
+
+  /**
+   * The {@link Step} of a task, that runs a process.
+   */
+  public static class Step {
+
+    private final String name;
+    private final long   pid;
+    private final long   started;
+
+    private long         wall;
+    private long         cpu     = -1;
+    private long         rss     = -1;
+    private long         read    = -1;
+    private long         written = -1;
+
+    /**
+     * Constructs an instance of {@link Step}.
+     *
+     * @param name
+     * @param pid
+     */
+    private Step(String name, long pid) {
+      this.name = name;
+      this.pid = pid;
+      this.started = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the name of the step.
+     */
+    public final String getName() {
+      return this.name;
+    }
+
+    /**
+     * Get the wall-clock time in milliseconds.
+     */
+    public final synchronized long getWallTime() {
+      return this.wall;
+    }
+
+    /**
+     * Get the CPU time in milliseconds, or a negative value if unknown.
+     */
+    public final synchronized long getCpuTime() {
+      return this.cpu;
+    }
+
+    /**
+     * Get the peak resident memory of the process tree in bytes, or a negative value if unknown.
+     */
+    public final synchronized long getPeakMemory() {
+      return this.rss;
+    }
+
+    /**
+     * Get the bytes read from the storage, or a negative value if unknown.
+     */
+    public final synchronized long getBytesRead() {
+      return this.read;
+    }
+
+    /**
+     * Get the bytes written to the storage, or a negative value if unknown.
+     */
+    public final synchronized long getBytesWritten() {
+      return this.written;
+    }
+
+    /**
+     * Samples the process tree.
+     *
+     * @param tree
+     */
+    private synchronized void sample(Tree tree) {
+      this.wall = System.currentTimeMillis() - this.started;
+      if ((tree == null) || !tree.stats.containsKey(this.pid)) {
+        return;
+      }
+
+      long ticks = 0;
+      long memory = 0;
+      long[] io = new long[2];
+      boolean hasIO = false;
+      for (long child : tree.getProcesses(this.pid)) {
+        String[] fields = tree.stats.get(child);
+        ticks += ProcessMonitor.getCpuTicks(fields);
+        memory += ProcessMonitor.getMemory(child);
+        hasIO |= ProcessMonitor.readIO(child, io);
+      }
+      this.cpu = Math.max(this.cpu, ticks * 1000 / ProcessMonitor.CLOCK_TICK);
+      this.rss = Math.max(this.rss, memory);
+      if (hasIO) {
+        this.read = Math.max(this.read, io[0]);
+        this.written = Math.max(this.written, io[1]);
+      }
+    }
+  }
+
+  /**
+   * The {@link Tree} is a snapshot of all processes, with the fields of their
+   * <code>/proc/&lt;pid&gt;/stat</code> and their children.
+   */
+  private static class Tree {
+
+    private final Map<Long, String[]>   stats    = new HashMap<>();
+    private final Map<Long, List<Long>> children = new HashMap<>();
+
+    /**
+     * Get the process and all its descendants.
+     *
+     * @param pid
+     */
+    private List<Long> getProcesses(long pid) {
+      List<Long> processes = new ArrayList<>();
+      Deque<Long> queue = new ArrayDeque<>();
+      queue.add(pid);
+      while (!queue.isEmpty()) {
+        long next = queue.poll();
+        processes.add(next);
+        queue.addAll(this.children.getOrDefault(next, new ArrayList<>()));
+      }
+      return processes;
+    }
+
+    /**
+     * Reads the snapshot of all processes, or <code>null</code> if <code>/proc</code> is not
+     * available.
+     */
+    private static Tree read() {
+      if (!Files.isDirectory(ProcessMonitor.PROC)) {
+        return null;
+      }
+      Tree tree = new Tree();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(ProcessMonitor.PROC, "[0-9]*")) {
+        for (Path path : stream) {
+          long pid = Long.parseLong(path.getFileName().toString());
+          String[] fields = ProcessMonitor.readStat(pid);
+          if (fields != null) {
+            tree.stats.put(pid, fields);
+            // The parent pid is the field 4, counting from the pid
+            tree.children.computeIfAbsent(Long.parseLong(fields[1]), p -> new ArrayList<>()).add(pid);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        return null;
+      }
+      return tree;
+    }
+  }
+
+  /**
+   * Constructs an instance of {@link ProcessMonitor}.
+   */
+  public ProcessMonitor() {}
+
+  /**
+   * Set the interval in milliseconds, in which the processes are sampled.
+   *
+   * @param interval
+   */
+  public final void setInterval(long interval) {
+    this.interval = Math.max(10, interval);
+  }
+
+  /**
+   * Get the finished steps, in the order they were started.
+   */
+  public final synchronized List<Step> getSteps() {
+    return new ArrayList<>(this.steps);
+  }
+
+  /**
+   * Starts a step for a process, that has been started.
+   *
+   * @param name
+   * @param process
+   */
+  public final synchronized Step start(String name, Process process) {
+    Step step = new Step(name, ProcessMonitor.getPid(process));
+    this.steps.add(step);
+    this.running.add(step);
+    if (this.sampler == null) {
+      this.sampler = new Thread(this::sample, "process-monitor");
+      this.sampler.setDaemon(true);
+      this.sampler.start();
+    }
+    return step;
+  }
+
+  /**
+   * Stops a step, before the process is destroyed.
+   *
+   * @param step
+   */
+  public final void stop(Step step) {
+    this.running.remove(step);
+    step.sample(null);
+  }
+
+  /**
+   * Samples the running steps, until the monitor is closed. The process tree is read once for all
+   * steps.
+   */
+  private void sample() {
+    while (!Thread.currentThread().isInterrupted()) {
+      if (!this.running.isEmpty()) {
+        Tree tree = Tree.read();
+        this.running.forEach(s -> s.sample(tree));
+      }
+      try {
+        Thread.sleep(this.interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops the sampling.
+   */
+  public final synchronized void close() {
+    if (this.sampler != null) {
+      this.sampler.interrupt();
+      this.sampler = null;
+    }
+  }
+
+  /**
+   * Get the lines of a table with the resources of the steps.
+   */
+  public final List<String> getTable() {
+    List<Step> list = getSteps();
+    int width = list.stream().mapToInt(s -> s.getName().length()).max().orElse(0);
+    width = Math.max(width, 4);
+
+    String format = "%-" + width + "s %9s %9s %10s %10s %10s";
+    List<String> lines = new ArrayList<>();
+    lines.add(String.format(Locale.ROOT, format, "Step", "Wall", "CPU", "Peak RSS", "Read", "Written"));
+    for (Step step : list) {
+      lines.add(String.format(Locale.ROOT, format, step.getName(), ProcessMonitor.toSeconds(step.getWallTime()),
+          ProcessMonitor.toSeconds(step.getCpuTime()), ProcessMonitor.toBytes(step.getPeakMemory()),
+          ProcessMonitor.toBytes(step.getBytesRead()), ProcessMonitor.toBytes(step.getBytesWritten())));
+    }
+    return lines;
+  }
+
+  /**
+   * Writes the resources of the steps as JSON. Unknown values are negative.
+   *
+   * @param file
+   */
+  public final void write(Path file) throws IOException {
+    JsonArrayBuilder array = Json.createArrayBuilder();
+    for (Step step : getSteps()) {
+      array.add(Json.createObjectBuilder().add("name", step.getName()).add("wall", step.getWallTime())
+          .add("cpu", step.getCpuTime()).add("peakRss", step.getPeakMemory()).add("bytesRead", step.getBytesRead())
+          .add("bytesWritten", step.getBytesWritten()));
+    }
+
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      Json.createWriter(writer).writeObject(Json.createObjectBuilder().add("steps", array).build());
+    }
+  }
+
+  /**
+   * Formats milliseconds as seconds.
+   *
+   * @param millis
+   */
+  private static String toSeconds(long millis) {
+    return (millis < 0) ? "n/a" : String.format(Locale.ROOT, "%.1fs", millis / 1000.0);
+  }
+
+  /**
+   * Formats a number of bytes.
+   *
+   * @param bytes
+   */
+  private static String toBytes(long bytes) {
+    if (bytes < 0) {
+      return "n/a";
+    }
+    return (bytes < 1024 * 1024) ? String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0)
+        : String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024.0));
+  }
+
+  /**
+   * Get the CPU time of a process and its waited children in clock ticks.
+   *
+   * @param fields
+   */
+  private static long getCpuTicks(String[] fields) {
+    // utime, stime, cutime and cstime are the fields 14 to 17, counting from the pid
+    return Long.parseLong(fields[11]) + Long.parseLong(fields[12]) + Long.parseLong(fields[13])
+        + Long.parseLong(fields[14]);
+  }
+
+  /**
+   * Get the resident memory of a process in bytes from <code>/proc/&lt;pid&gt;/status</code>.
+   *
+   * @param pid
+   */
+  private static long getMemory(long pid) {
+    try {
+      for (String line : Files.readAllLines(ProcessMonitor.PROC.resolve(pid + "/status"), StandardCharsets.UTF_8)) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // The process has finished
+    }
+    return 0;
+  }
+
+  /**
+   * Adds the bytes read and written of <code>/proc/&lt;pid&gt;/io</code>. Returns
+   * <code>false</code> if the I/O of the process is not accessible.
+   *
+   * @param pid
+   * @param io
+   */
+  private static boolean readIO(long pid, long[] io) {
+    try {
+      for (String line : Files.readAllLines(ProcessMonitor.PROC.resolve(pid + "/io"), StandardCharsets.UTF_8)) {
+        if (line.startsWith("read_bytes:")) {
+          io[0] += Long.parseLong(line.substring(11).trim());
+        } else if (line.startsWith("write_bytes:")) {
+          io[1] += Long.parseLong(line.substring(12).trim());
+        }
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads the fields of <code>/proc/&lt;pid&gt;/stat</code> after the command, starting with the
+   * state. Returns <code>null</code> if the process is unknown.
+   *
+   * @param pid
+   */
+  protected static String[] readStat(long pid) {
+    if (pid <= 0) {
+      return null;
+    }
+    try {
+      String stat = new String(Files.readAllBytes(ProcessMonitor.PROC.resolve(pid + "/stat")), StandardCharsets.UTF_8);
+      // The command may contain spaces and parentheses
+      return stat.substring(stat.lastIndexOf(')') + 2).trim().split("\\s+");
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the pid of a process, or a negative value if unknown. The pid is provided since Java 9, or
+   * by the implementation of Java 8 on Unix.
+   *
+   * @param process
+   */
+  public static long getPid(Process process) {
+    try {
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Java 8
+    }
+    try {
+      Field field = process.getClass().getDeclaredField("pid");
+      field.setAccessible(true);
+      return field.getInt(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+}
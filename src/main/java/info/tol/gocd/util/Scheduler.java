@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link Scheduler} runs named jobs concurrently, up to a limit. A job is started only after
+ * all jobs it is ordered after have finished successfully. The first failing job cancels the
+ * running jobs and no further job is started.
+ */
+public class Scheduler {
+
+  private final int                            limit;
+  private final Map<String, Callable<Boolean>> jobs   = new LinkedHashMap<>();
+  private final Map<String, Set<String>>       orders = new HashMap<>();
+  private final List<String>                   failed = new ArrayList<>();
+
+  /**
+   * Constructs an instance of {@link Scheduler}.
+   *
+   * @param limit
+   */
+  public Scheduler(int limit) {
+    this.limit = Math.max(1, limit);
+  }
+
+  /**
+   * Get the maximum number of concurrent jobs.
+   */
+  public final int getLimit() {
+    return this.limit;
+  }
+
+  /**
+   * Get the names of the failed jobs.
+   */
+  public final List<String> getFailed() {
+    return Collections.unmodifiableList(this.failed);
+  }
+
+  /**
+   * Add a named job. Jobs without ordering constraints are started in the order they are added.
+   *
+   * @param name
+   * @param job
+   */
+  public final Scheduler add(String name, Callable<Boolean> job) {
+    this.jobs.put(name, job);
+    return this;
+  }
+
+  /**
+   * Add an ordering constraint: the job <code>after</code> waits for the job <code>before</code>.
+   *
+   * @param before
+   * @param after
+   */
+  public final Scheduler addOrder(String before, String after) {
+    this.orders.computeIfAbsent(after, n -> new HashSet<>()).add(before);
+    return this;
+  }
+
+  /**
+   * Runs all jobs and returns <code>true</code> if all of them succeeded. An exception thrown by a
+   * job is re-thrown after the running jobs have been cancelled.
+   */
+  public final boolean run() throws Exception {
+    Set<String> pending = new LinkedHashSet<>(this.jobs.keySet());
+    Set<String> done = new HashSet<>();
+    Map<Future<Boolean>, String> running = new HashMap<>();
+    Throwable error = null;
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.limit, Math.max(1, pending.size())));
+    CompletionService<Boolean> service = new ExecutorCompletionService<>(executor);
+    try {
+      while (!pending.isEmpty() || !running.isEmpty()) {
+        Iterator<String> iterator = pending.iterator();
+        while ((running.size() < this.limit) && iterator.hasNext()) {
+          String name = iterator.next();
+          Set<String> before = new HashSet<>(this.orders.getOrDefault(name, Collections.emptySet()));
+          before.retainAll(this.jobs.keySet());
+          if (done.containsAll(before)) {
+            iterator.remove();
+            running.put(service.submit(this.jobs.get(name)), name);
+          }
+        }
+
+        if (running.isEmpty()) {
+          throw new IllegalArgumentException("Cyclic ordering between " + String.join(", ", pending));
+        }
+
+        Future<Boolean> future = service.take();
+        String name = running.remove(future);
+        boolean success;
+        try {
+          success = Boolean.TRUE.equals(future.get());
+        } catch (ExecutionException e) {
+          success = false;
+          error = e.getCause();
+        }
+
+        if (!success) {
+          this.failed.add(name);
+          break;
+        }
+        done.add(name);
+      }
+    } finally {
+      running.keySet().forEach(f -> f.cancel(true));
+      executor.shutdownNow();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    if (error instanceof Exception) {
+      throw (Exception) error;
+    } else if (error != null) {
+      throw new ExecutionException(error);
+    }
+    return this.failed.isEmpty();
+  }
+
+  /**
+   * Constructs an instance of {@link Scheduler}.
+   *
+   * @param limit
+   */
+  public static Scheduler of(int limit) {
+    return new Scheduler(limit);
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ScriptEnvironment} is the snapshot of the environment changes of a setup script, e.g.
+ * the <code>vcvarsall.bat</code> of Visual Studio or the <code>environment-setup-*</code> script
+ * of a cross toolchain. The script runs once, the changes are kept on disk by the path, the
+ * modification time and the arguments of the script, and are applied to the environment of each
+ * process instead of running the script again.
+ *
+ * A variable, that is extended by the script like PATH, keeps the text before and after the
+ * original value, so that the changes also apply to a different original value.
+ */
+public class ScriptEnvironment {
+
+  private static final String                         DIRECTORY = ".gocd-qt-setup";
+
+  private static final String                         SET       = "set.";
+  private static final String                         PREFIX    = "prefix.";
+  private static final String                         SUFFIX    = "suffix.";
+  private static final String                         UNSET     = "unset.";
+
+  // The variables of the shell, that are not changed by the script
+  private static final List<String>                   IGNORED   = Arrays.asList("_", "SHLVL", "PWD", "OLDPWD");
+
+  private static final Map<String, ScriptEnvironment> SNAPSHOTS = new ConcurrentHashMap<>();
+
+
+  private final Properties                            changes;
+  private final boolean                               cached;
+
+  /**
+   * Constructs an instance of {@link ScriptEnvironment}.
+   *
+   * @param changes
+   * @param cached
+   */
+  private ScriptEnvironment(Properties changes, boolean cached) {
+    this.changes = changes;
+    this.cached = cached;
+  }
+
+  /**
+   * Returns <code>true</code> if the snapshot has been taken by a previous task.
+   */
+  public final boolean isCached() {
+    return this.cached;
+  }
+
+  /**
+   * Get the number of variables changed by the script.
+   */
+  public final int size() {
+    return (int) this.changes.stringPropertyNames().stream()
+        .filter(n -> !n.startsWith(ScriptEnvironment.SUFFIX)).count();
+  }
+
+  /**
+   * Applies the changes of the script to an environment.
+   *
+   * @param environment
+   */
+  public final void apply(Map<String, String> environment) {
+    for (String name : this.changes.stringPropertyNames()) {
+      String value = this.changes.getProperty(name);
+      if (name.startsWith(ScriptEnvironment.SET)) {
+        environment.put(name.substring(ScriptEnvironment.SET.length()), value);
+      } else if (name.startsWith(ScriptEnvironment.UNSET)) {
+        environment.remove(name.substring(ScriptEnvironment.UNSET.length()));
+      } else if (name.startsWith(ScriptEnvironment.PREFIX)) {
+        String variable = name.substring(ScriptEnvironment.PREFIX.length());
+        String suffix = this.changes.getProperty(ScriptEnvironment.SUFFIX + variable, "");
+        String original = environment.get(variable);
+        if ((original == null) || original.isEmpty()) {
+          environment.put(variable, ScriptEnvironment.trim(value + suffix));
+        } else {
+          environment.put(variable, value + original + suffix);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the leading and trailing path separators, of a variable extended by the script.
+   *
+   * @param value
+   */
+  private static String trim(String value) {
+    String text = value;
+    while (text.startsWith(File.pathSeparator)) {
+      text = text.substring(1);
+    }
+    while (text.endsWith(File.pathSeparator)) {
+      text = text.substring(0, text.length() - 1);
+    }
+    return text;
+  }
+
+  /**
+   * Get the differences between the environment before and after the script.
+   *
+   * @param before
+   * @param after
+   */
+  protected static Properties diff(Map<String, String> before, Map<String, String> after) {
+    Properties changes = new Properties();
+    for (Map.Entry<String, String> entry : after.entrySet()) {
+      String name = entry.getKey();
+      String value = entry.getValue();
+      String original = ScriptEnvironment.get(before, name);
+      if (value.equals(original) || ScriptEnvironment.IGNORED.contains(name)) {
+        continue;
+      }
+      int index = ((original == null) || original.isEmpty()) ? -1 : value.indexOf(original);
+      if (index < 0) {
+        changes.setProperty(ScriptEnvironment.SET + name, value);
+      } else {
+        changes.setProperty(ScriptEnvironment.PREFIX + name, value.substring(0, index));
+        changes.setProperty(ScriptEnvironment.SUFFIX + name, value.substring(index + original.length()));
+      }
+    }
+    // The shell drops the variables, whose names are not valid identifiers
+    for (String name : before.keySet()) {
+      if ((ScriptEnvironment.get(after, name) == null) && !ScriptEnvironment.IGNORED.contains(name)
+          && name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+        changes.setProperty(ScriptEnvironment.UNSET + name, "");
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Get a variable, ignoring the case of the name on Windows.
+   *
+   * @param environment
+   * @param name
+   */
+  private static String get(Map<String, String> environment, String name) {
+    String value = environment.get(name);
+    if ((value == null) && ScriptEnvironment.isWindows()) {
+      for (Map.Entry<String, String> entry : environment.entrySet()) {
+        if (entry.getKey().equalsIgnoreCase(name)) {
+          return entry.getValue();
+        }
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Runs the script and reads the resulting environment.
+   *
+   * @param script
+   * @param arguments
+   * @param environment
+   */
+  private static Map<String, String> run(Path script, List<String> arguments, Map<String, String> environment)
+      throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    if (ScriptEnvironment.isWindows()) {
+      StringBuilder line = new StringBuilder("call \"" + script + "\"");
+      arguments.forEach(a -> line.append(" ").append(a));
+      command.add("cmd");
+      command.add("/c");
+      command.add(line.append(" >nul 2>&1 && set").toString());
+    } else {
+      command.add("sh");
+      command.add("-c");
+      command.add("script=\"$1\"; shift; . \"$script\" >/dev/null 2>&1 </dev/null && env -0");
+      command.add("sh");
+      command.add(script.toString());
+      command.addAll(arguments);
+    }
+
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.environment().clear();
+    builder.environment().putAll(environment);
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (InputStream stream = process.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = stream.read(buffer)) > 0) {
+        output.write(buffer, 0, length);
+      }
+    }
+    int exitCode = process.waitFor();
+    if (exitCode != 0) {
+      throw new IOException("Setup script " + script + " returned with status code " + exitCode);
+    }
+
+    Map<String, String> result = new HashMap<>();
+    String text = new String(output.toByteArray(), Charset.defaultCharset());
+    for (String entry : text.split(ScriptEnvironment.isWindows() ? "\r?\n" : "\u0000")) {
+      int index = entry.indexOf('=');
+      // Windows keeps the drive directories as hidden variables like =C:
+      if (index > 0) {
+        result.put(entry.substring(0, index), entry.substring(index + 1));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the {@link ScriptEnvironment} of a setup script. The script runs with the environment, if
+   * no snapshot exists for the path, the modification time and the arguments of the script.
+   *
+   * @param script
+   * @param arguments
+   * @param environment
+   */
+  public static ScriptEnvironment of(Path script, List<String> arguments, Map<String, String> environment)
+      throws IOException, InterruptedException {
+    String key = Hash.sha256().update(script.toAbsolutePath().toString())
+        .update(String.valueOf(Files.getLastModifiedTime(script).toMillis())).update(String.join(" ", arguments))
+        .toHex();
+    ScriptEnvironment snapshot = ScriptEnvironment.SNAPSHOTS.get(key);
+    if (snapshot != null) {
+      return snapshot;
+    }
+
+    Path file = Paths.get(System.getProperty("user.home"), ScriptEnvironment.DIRECTORY, key + ".properties");
+    if (Files.isRegularFile(file)) {
+      Properties changes = new Properties();
+      try (InputStream stream = Files.newInputStream(file)) {
+        changes.load(stream);
+        snapshot = new ScriptEnvironment(changes, true);
+      } catch (IOException e) {
+        // The snapshot is taken again
+      }
+    }
+
+    if (snapshot == null) {
+      Properties changes = ScriptEnvironment.diff(environment, ScriptEnvironment.run(script, arguments, environment));
+      snapshot = new ScriptEnvironment(changes, false);
+      ScriptEnvironment.store(changes, file, script + " " + String.join(" ", arguments));
+    }
+    ScriptEnvironment.SNAPSHOTS.put(key, snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Stores the snapshot. The file is replaced atomically, as the agents may share it.
+   *
+   * @param changes
+   * @param file
+   * @param comment
+   */
+  private static void store(Properties changes, Path file, String comment) {
+    Path temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      Files.createDirectories(file.getParent());
+      try (OutputStream stream = Files.newOutputStream(temp)) {
+        changes.store(stream, comment);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // The snapshot is taken again by the next task
+    } finally {
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Returns <code>true</code> on Windows.
+   */
+  private static boolean isWindows() {
+    String osName = System.getProperty("os.name");
+    return (osName != null) && osName.toLowerCase().contains("windows");
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The {@link TarArchive} writes a directory tree as gzip compressed POSIX tar archive. Unlike a
+ * zip archive of <code>java.util.zip</code>, the archive keeps the permissions and symbolic links
+ * of the files. Long names and large files are written with pax headers.
+ */
+public class TarArchive {
+
+  private static final int    BLOCK    = 512;
+  private static final long   MAX_SIZE = 077777777777L;
+
+  private final OutputStream  stream;
+  private long                bytes;
+
+  /**
+   * Constructs an instance of {@link TarArchive}.
+   *
+   * @param stream
+   */
+  private TarArchive(OutputStream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Adds an entry with its content.
+   *
+   * @param name
+   * @param type
+   * @param mode
+   * @param size
+   * @param modified
+   * @param link
+   * @param file
+   */
+  private void add(String name, char type, int mode, long size, long modified, String link, Path file)
+      throws IOException {
+    StringBuilder pax = new StringBuilder();
+    if (name.getBytes(StandardCharsets.UTF_8).length > 100) {
+      pax.append(TarArchive.toRecord("path", name));
+    }
+    if ((link != null) && (link.getBytes(StandardCharsets.UTF_8).length > 100)) {
+      pax.append(TarArchive.toRecord("linkpath", link));
+    }
+    if (size > TarArchive.MAX_SIZE) {
+      pax.append(TarArchive.toRecord("size", String.valueOf(size)));
+    }
+    if (pax.length() > 0) {
+      byte[] data = pax.toString().getBytes(StandardCharsets.UTF_8);
+      writeHeader("PaxHeader", 'x', 0644, data.length, modified, null);
+      this.stream.write(data);
+      pad(data.length);
+    }
+
+    writeHeader(name, type, mode, Math.min(size, TarArchive.MAX_SIZE), modified, link);
+    if (file != null) {
+      this.bytes += Files.copy(file, this.stream);
+      pad(size);
+    }
+  }
+
+  /**
+   * Writes a ustar header.
+   *
+   * @param name
+   * @param type
+   * @param mode
+   * @param size
+   * @param modified
+   * @param link
+   */
+  private void writeHeader(String name, char type, int mode, long size, long modified, String link)
+      throws IOException {
+    byte[] header = new byte[TarArchive.BLOCK];
+    TarArchive.put(header, 0, 100, name.getBytes(StandardCharsets.UTF_8));
+    TarArchive.putOctal(header, 100, 8, mode);
+    TarArchive.putOctal(header, 108, 8, 0);
+    TarArchive.putOctal(header, 116, 8, 0);
+    TarArchive.putOctal(header, 124, 12, size);
+    TarArchive.putOctal(header, 136, 12, modified / 1000);
+    header[156] = (byte) type;
+    if (link != null) {
+      TarArchive.put(header, 157, 100, link.getBytes(StandardCharsets.UTF_8));
+    }
+    TarArchive.put(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+    TarArchive.put(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+
+    // The checksum is calculated with the checksum field filled with spaces
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    TarArchive.putOctal(header, 148, 7, checksum);
+    this.stream.write(header);
+  }
+
+  /**
+   * Pads an entry to the block size.
+   *
+   * @param size
+   */
+  private void pad(long size) throws IOException {
+    int remainder = (int) (size % TarArchive.BLOCK);
+    if (remainder > 0) {
+      this.stream.write(new byte[TarArchive.BLOCK - remainder]);
+    }
+  }
+
+  /**
+   * Get a pax record. The length of the record includes the digits of the length.
+   *
+   * @param key
+   * @param value
+   */
+  private static String toRecord(String key, String value) {
+    int length = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+    int total = length + String.valueOf(length).length();
+    if (String.valueOf(total).length() > String.valueOf(length).length()) {
+      total++;
+    }
+    return total + " " + key + "=" + value + "\n";
+  }
+
+  /**
+   * Puts the bytes into a field of the header.
+   *
+   * @param header
+   * @param offset
+   * @param length
+   * @param bytes
+   */
+  private static void put(byte[] header, int offset, int length, byte[] bytes) {
+    System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+  }
+
+  /**
+   * Puts an octal number, terminated by NUL, into a field of the header.
+   *
+   * @param header
+   * @param offset
+   * @param length
+   * @param value
+   */
+  private static void putOctal(byte[] header, int offset, int length, long value) {
+    String octal = String.format("%0" + (length - 1) + "o", value);
+    TarArchive.put(header, offset, length - 1, octal.getBytes(StandardCharsets.US_ASCII));
+    header[offset + length - 1] = 0;
+  }
+
+  /**
+   * Get the permissions of a file, or the default permissions if the file system has none.
+   *
+   * @param path
+   * @param directory
+   */
+  private static int getMode(Path path, boolean directory) {
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+      int mode = 0;
+      for (PosixFilePermission permission : permissions) {
+        mode |= 1 << (8 - permission.ordinal());
+      }
+      return mode;
+    } catch (IOException | UnsupportedOperationException e) {
+      return directory ? 0755 : 0644;
+    }
+  }
+
+  /**
+   * Writes the content of a directory as gzip compressed tar archive. Returns the number of bytes
+   * of the archived files.
+   *
+   * @param source
+   * @param target
+   * @param level
+   */
+  public static long write(Path source, Path target, int level) throws IOException {
+    try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(target), 64 * 1024);
+        GZIPOutputStream gzip = new GZIPOutputStream(file, 64 * 1024) {
+
+          {
+            this.def.setLevel(level);
+          }
+        }) {
+      TarArchive archive = new TarArchive(gzip);
+      Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+          if (!dir.equals(source)) {
+            archive.add(TarArchive.getName(source, dir) + "/", '5', TarArchive.getMode(dir, true), 0,
+                attrs.lastModifiedTime().toMillis(), null, null);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+          String name = TarArchive.getName(source, path);
+          long modified = attrs.lastModifiedTime().toMillis();
+          if (attrs.isSymbolicLink()) {
+            String link = Files.readSymbolicLink(path).toString().replace('\\', '/');
+            archive.add(name, '2', 0777, 0, modified, link, null);
+          } else if (attrs.isRegularFile()) {
+            archive.add(name, '0', TarArchive.getMode(path, false), attrs.size(), modified, null, path);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      // The archive ends with two empty blocks
+      gzip.write(new byte[2 * TarArchive.BLOCK]);
+      return archive.bytes;
+    }
+  }
+
+  /**
+   * Get the name of an entry, relative to the source directory.
+   *
+   * @param source
+   * @param path
+   */
+  private static String getName(Path source, Path path) {
+    return source.relativize(path).toString().replace('\\', '/');
+  }
+}
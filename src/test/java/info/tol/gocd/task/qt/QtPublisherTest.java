@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.tol.gocd.util.FileTree;
+
+/**
+ * The {@link QtPublisherTest} tests the delta synchronisation of a repository by the
+ * {@link QtPublisher}.
+ */
+public class QtPublisherTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path           source;
+  private Path           target;
+
+  @Before
+  public void setUp() throws IOException {
+    this.source = this.folder.newFolder("repository").toPath();
+    this.target = this.folder.newFolder("published").toPath();
+
+    write(this.source, "Updates.xml", "<Updates>1</Updates>");
+    write(this.source, "org.app/1.0data.7z", "app 1.0");
+    write(this.source, "org.app/1.0meta.7z", "meta 1.0");
+    write(this.source, "org.tools/1.0data.7z", "tools 1.0");
+  }
+
+  @Test
+  public void testPublish() throws IOException {
+    QtPublisher publisher = QtPublisher.of(this.source, this.target);
+    Assert.assertEquals(4, publisher.publish());
+    Assert.assertEquals(4, publisher.getCopied());
+    Assert.assertEquals(0, publisher.getDeleted());
+    Assert.assertEquals("app 1.0", read(this.target, "org.app/1.0data.7z"));
+
+    publisher = QtPublisher.of(this.source, this.target);
+    Assert.assertEquals(4, publisher.publish());
+    Assert.assertEquals(0, publisher.getCopied());
+    Assert.assertEquals(0, publisher.getBytes());
+  }
+
+  @Test
+  public void testChanged() throws IOException {
+    QtPublisher.of(this.source, this.target).publish();
+    // The sizes differ, so the changes are detected within the same millisecond
+    write(this.source, "Updates.xml", "<Updates>10</Updates>");
+    write(this.source, "org.app/1.0data.7z", "app 1.0.1");
+
+    QtPublisher publisher = QtPublisher.of(this.source, this.target);
+    publisher.publish();
+    Assert.assertEquals(2, publisher.getCopied());
+    Assert.assertEquals("app 1.0.1", read(this.target, "org.app/1.0data.7z"));
+    Assert.assertEquals("<Updates>10</Updates>", read(this.target, "Updates.xml"));
+  }
+
+  @Test
+  public void testStale() throws IOException {
+    QtPublisher.of(this.source, this.target).publish();
+    FileTree.delete(this.source.resolve("org.tools"));
+    Files.delete(this.source.resolve("org.app/1.0data.7z"));
+    write(this.source, "org.app/2.0data.7z", "app 2.0");
+
+    QtPublisher publisher = QtPublisher.of(this.source, this.target);
+    Assert.assertEquals(3, publisher.publish());
+    Assert.assertEquals(1, publisher.getCopied());
+    Assert.assertEquals(2, publisher.getDeleted());
+    Assert.assertFalse(Files.exists(this.target.resolve("org.app/1.0data.7z")));
+    Assert.assertFalse(Files.exists(this.target.resolve("org.tools")));
+    Assert.assertTrue(Files.isRegularFile(this.target.resolve("org.app/2.0data.7z")));
+  }
+
+  @Test
+  public void testUpdatesLast() throws IOException {
+    QtPublisher.of(this.source, this.target).publish();
+    write(this.source, "Updates.xml", "<Updates>10</Updates>");
+    write(this.source, "org.app/2.0data.7z", "app 2.0");
+    // A directory in place of the new archive fails its copy
+    write(this.target, "org.app/2.0data.7z/blocked", "");
+
+    try {
+      QtPublisher.of(this.source, this.target).publish();
+      Assert.fail("The archive has been published");
+    } catch (IOException e) {
+      // The metadata must not refer to the missing archive
+    }
+    Assert.assertEquals("<Updates>1</Updates>", read(this.target, "Updates.xml"));
+    Assert.assertTrue(Files.isRegularFile(this.target.resolve("org.tools/1.0data.7z")));
+  }
+
+  @Test
+  public void testMissingRepository() throws IOException {
+    QtPublisher.of(this.source, this.target).publish();
+    Files.delete(this.source.resolve("Updates.xml"));
+
+    try {
+      QtPublisher.of(this.source, this.target).publish();
+      Assert.fail("The repository without metadata has been published");
+    } catch (IOException e) {
+      // The published repository is kept
+    }
+    Assert.assertEquals("<Updates>1</Updates>", read(this.target, "Updates.xml"));
+    Assert.assertTrue(Files.isRegularFile(this.target.resolve("org.tools/1.0data.7z")));
+  }
+
+  /**
+   * Writes a file of a repository.
+   *
+   * @param root
+   * @param file
+   * @param text
+   */
+  private static void write(Path root, String file, String text) throws IOException {
+    Path path = root.resolve(file);
+    Files.createDirectories(path.getParent());
+    Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a file of a repository.
+   *
+   * @param root
+   * @param file
+   */
+  private static String read(Path root, String file) throws IOException {
+    return new String(Files.readAllBytes(root.resolve(file)), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.tol.gocd.util.FileTree;
+
+/**
+ * The {@link QtRepoManifestTest} tests the detection of the changed packages by the
+ * {@link QtRepoManifest}.
+ */
+public class QtRepoManifestTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path           packages;
+  private Path           repository;
+
+  @Before
+  public void setUp() throws IOException {
+    this.packages = this.folder.newFolder("packages").toPath();
+    this.repository = this.folder.newFolder("repository").toPath();
+
+    addPackage("org.app", "");
+    addPackage("org.app.qml", "org.app->1.0");
+    addPackage("org.app.doc", "org.app.qml, org.other");
+    addPackage("org.tools", "");
+    QtRepoManifest.of(this.packages, this.repository).store();
+  }
+
+  @Test
+  public void testUnchanged() throws IOException {
+    QtRepoManifest manifest = QtRepoManifest.of(this.packages, this.repository);
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("org.app", "org.app.doc", "org.app.qml", "org.tools")),
+        manifest.getPackages());
+    Assert.assertEquals(Collections.emptySet(), manifest.getChanged());
+  }
+
+  @Test
+  public void testDependents() throws IOException {
+    Files.write(this.packages.resolve("org.app/data/file.txt"), "changed".getBytes(StandardCharsets.UTF_8));
+
+    QtRepoManifest manifest = QtRepoManifest.of(this.packages, this.repository);
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("org.app", "org.app.doc", "org.app.qml")), manifest.getChanged());
+  }
+
+  @Test
+  public void testLeaf() throws IOException {
+    Files.write(this.packages.resolve("org.app.doc/meta/license.txt"), "MIT".getBytes(StandardCharsets.UTF_8));
+
+    QtRepoManifest manifest = QtRepoManifest.of(this.packages, this.repository);
+    Assert.assertEquals(Collections.singleton("org.app.doc"), manifest.getChanged());
+  }
+
+  @Test
+  public void testAdded() throws IOException {
+    addPackage("org.new", "org.tools");
+
+    QtRepoManifest manifest = QtRepoManifest.of(this.packages, this.repository);
+    Assert.assertEquals(Collections.singleton("org.new"), manifest.getChanged());
+  }
+
+  @Test
+  public void testRemoved() throws IOException {
+    FileTree.delete(this.packages.resolve("org.tools"));
+
+    Assert.assertNull(QtRepoManifest.of(this.packages, this.repository).getChanged());
+  }
+
+  @Test
+  public void testNoRepository() throws IOException {
+    FileTree.delete(this.repository);
+
+    Assert.assertNull(QtRepoManifest.of(this.packages, this.repository).getChanged());
+  }
+
+  @Test
+  public void testNoManifest() throws IOException {
+    Files.delete(this.repository.resolveSibling("repository.manifest"));
+
+    Assert.assertNull(QtRepoManifest.of(this.packages, this.repository).getChanged());
+  }
+
+  /**
+   * Adds a package with its <code>meta/package.xml</code> and a data file.
+   *
+   * @param name
+   * @param dependencies
+   */
+  private void addPackage(String name, String dependencies) throws IOException {
+    Path directory = this.packages.resolve(name);
+    Files.createDirectories(directory.resolve("meta"));
+    Files.createDirectories(directory.resolve("data"));
+    String xml = "<?xml version=\"1.0\"?>\n<Package>\n  <Name>" + name + "</Name>\n"
+        + (dependencies.isEmpty() ? "" : "  <Dependencies>" + dependencies + "</Dependencies>\n") + "</Package>\n";
+    Files.write(directory.resolve("meta/package.xml"), xml.getBytes(StandardCharsets.UTF_8));
+    Files.write(directory.resolve("data/file.txt"), name.getBytes(StandardCharsets.UTF_8));
+  }
+}
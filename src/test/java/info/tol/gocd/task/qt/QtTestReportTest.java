@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.task.qt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Element;
+
+import info.tol.gocd.task.qt.QtTestReport.Status;
+import info.tol.gocd.task.qt.QtTestReport.TestCase;
+
+/**
+ * The {@link QtTestReportTest} tests the merging of the reports of the shards and of the
+ * functions, that were run again.
+ */
+public class QtTestReportTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testMerge() throws Exception {
+    Path first = write("shard-0", "<testcase name=\"initTestCase\" result=\"pass\" time=\"0.001\"/>"
+        + "<testcase name=\"testA\" result=\"pass\" time=\"0.250\"/>"
+        + "<testcase name=\"testB\" result=\"fail\" time=\"0.500\">"
+        + "<failure result=\"fail\" message=\"Compared values are not the same\"/></testcase>"
+        + "<testcase name=\"cleanupTestCase\" result=\"pass\" time=\"0.001\"/>", "first");
+    Path second = write("shard-1", "<testcase name=\"initTestCase\" result=\"pass\" time=\"0.002\"/>"
+        + "<testcase name=\"testC\" result=\"pass\" time=\"1.000\"/>"
+        + "<testcase name=\"testD\" result=\"skip\" time=\"0\">"
+        + "<message type=\"skip\" message=\"Not supported\"/></testcase>"
+        + "<testcase name=\"cleanupTestCase\" result=\"pass\" time=\"0.002\"/>", "second");
+    Path target = this.folder.getRoot().toPath().resolve("tst_app.xml");
+
+    QtTestReport.merge("tst_app", Arrays.asList(first, second), target);
+
+    Element suite = QtTestReportTest.parse(target);
+    Assert.assertEquals("tst_app", suite.getAttribute("name"));
+    Assert.assertEquals("6", suite.getAttribute("tests"));
+    Assert.assertEquals("1", suite.getAttribute("failures"));
+    Assert.assertEquals("0", suite.getAttribute("errors"));
+    Assert.assertEquals("1", suite.getAttribute("skipped"));
+    Assert.assertEquals("1.752", suite.getAttribute("time"));
+    Assert.assertEquals(1, suite.getElementsByTagName("properties").getLength());
+    Assert.assertEquals("first\nsecond", suite.getElementsByTagName("system-out").item(0).getTextContent());
+
+    List<String> names = new ArrayList<>();
+    List<TestCase> testCases = QtTestReportTest.read(target);
+    testCases.forEach(t -> names.add(t.getName()));
+    Assert.assertEquals(Arrays.asList("initTestCase", "testA", "testB", "cleanupTestCase", "testC", "testD"), names);
+    Assert.assertEquals(0.001, testCases.get(0).getTime(), 0.0001);
+    Assert.assertEquals(Status.FAIL, testCases.get(2).getStatus());
+    Assert.assertEquals("Compared values are not the same", testCases.get(2).getMessage());
+    Assert.assertEquals(Status.SKIP, testCases.get(5).getStatus());
+    Assert.assertEquals(Arrays.asList("testB"), QtTestReport.getFailures(target));
+    Assert.assertEquals(1.0, QtTestReport.getDurations(target).get("testC"), 0.0001);
+  }
+
+  @Test
+  public void testMergeFailedSpecial() throws Exception {
+    Path first = write("shard-0", "<testcase name=\"initTestCase\" result=\"pass\" time=\"0.001\"/>"
+        + "<testcase name=\"testA\" result=\"pass\" time=\"0.250\"/>"
+        + "<testcase name=\"cleanupTestCase\" result=\"pass\" time=\"0.001\"/>", "");
+    Path second = write("shard-1", "<testcase name=\"initTestCase\" result=\"pass\" time=\"0.001\"/>"
+        + "<testcase name=\"testB\" result=\"pass\" time=\"0.250\"/>"
+        + "<testcase name=\"cleanupTestCase\" result=\"fail\" time=\"0.001\">"
+        + "<failure result=\"fail\" message=\"Leaked a file\"/></testcase>", "");
+    Path target = this.folder.getRoot().toPath().resolve("tst_app.xml");
+
+    QtTestReport.merge("tst_app", Arrays.asList(first, second), target);
+
+    Element suite = QtTestReportTest.parse(target);
+    Assert.assertEquals("4", suite.getAttribute("tests"));
+    Assert.assertEquals("1", suite.getAttribute("failures"));
+    Assert.assertEquals(Arrays.asList("cleanupTestCase"), QtTestReport.getFailures(target));
+    Assert.assertEquals(4, QtTestReportTest.read(target).size());
+  }
+
+  @Test
+  public void testMergeOutput() throws Exception {
+    StringBuilder output = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int line = 0; line < 10000; line++) {
+      String message = "QDEBUG : line " + line + " \uD83D\uDE00 a < b";
+      output.append("\n<![CDATA[").append(message).append("]]>");
+      expected.append(message).append("\n");
+    }
+    Path first = write("shard-0", "<testcase name=\"testA\" result=\"pass\" time=\"0.250\"/>", output.toString());
+    Path second = write("shard-1", "<testcase name=\"testB\" result=\"pass\" time=\"0.250\"/>",
+        "\n<![CDATA[c ]]]]><![CDATA[> d]]>\n");
+    Path target = this.folder.getRoot().toPath().resolve("tst_app.xml");
+
+    QtTestReport.merge("tst_app", Arrays.asList(first, second), target);
+
+    Element suite = QtTestReportTest.parse(target);
+    Assert.assertEquals(expected + "c ]]\n> d", suite.getElementsByTagName("system-out").item(0).getTextContent());
+    Assert.assertEquals("", suite.getElementsByTagName("system-err").item(0).getTextContent());
+    Assert.assertFalse(Files.exists(target.resolveSibling("tst_app.xml.out.tmp")));
+    Assert.assertFalse(Files.exists(target.resolveSibling("tst_app.xml.err.tmp")));
+  }
+
+  @Test
+  public void testMergeMissing() throws Exception {
+    Path first = write("shard-0", "<testcase name=\"testA\" result=\"pass\" time=\"0.250\"/>", "");
+    Path second = this.folder.getRoot().toPath().resolve("shard-1").resolve("report.xml");
+    Path target = this.folder.getRoot().toPath().resolve("tst_app.xml");
+
+    QtTestReport.merge("tst_app", Arrays.asList(first, second), target);
+
+    Element suite = QtTestReportTest.parse(target);
+    Assert.assertEquals("2", suite.getAttribute("tests"));
+    Assert.assertEquals("1", suite.getAttribute("errors"));
+    Assert.assertEquals(Arrays.asList("shard-1"), QtTestReport.getFailures(target));
+  }
+
+  @Test
+  public void testMergeRetried() throws Exception {
+    Path first = write("run-0", "<testcase name=\"initTestCase\" result=\"pass\" time=\"0.001\"/>"
+        + "<testcase name=\"testA\" result=\"pass\" time=\"0.250\"/>"
+        + "<testcase name=\"testB\" result=\"fail\" time=\"0.500\">"
+        + "<failure result=\"fail\" message=\"Timeout\"/></testcase>"
+        + "<testcase name=\"cleanupTestCase\" result=\"pass\" time=\"0.001\"/>", "");
+    Path second = write("run-1", "<testcase name=\"initTestCase\" result=\"pass\" time=\"0.002\"/>"
+        + "<testcase name=\"testB\" result=\"pass\" time=\"0.400\"/>"
+        + "<testcase name=\"cleanupTestCase\" result=\"pass\" time=\"0.002\"/>", "");
+    Map<Path, Collection<String>> excluded =
+        Collections.singletonMap(first, Arrays.asList("testB", "initTestCase", "cleanupTestCase"));
+
+    // The merged report replaces the first report
+    QtTestReport.merge("tst_app", Arrays.asList(first, second), excluded, "Run again: testB", first);
+
+    Element suite = QtTestReportTest.parse(first);
+    Assert.assertEquals("4", suite.getAttribute("tests"));
+    Assert.assertEquals("0", suite.getAttribute("failures"));
+    Assert.assertEquals("0.654", suite.getAttribute("time"));
+    Assert.assertEquals("Run again: testB", suite.getElementsByTagName("system-out").item(0).getTextContent());
+    Assert.assertEquals(Collections.emptyList(), QtTestReport.getFailures(first));
+    Assert.assertFalse(Files.exists(first.resolveSibling("report.xml.tmp")));
+
+    List<String> names = new ArrayList<>();
+    QtTestReport.read(first, t -> names.add(t.getName()));
+    Assert.assertEquals(Arrays.asList("testA", "initTestCase", "testB", "cleanupTestCase"), names);
+  }
+
+  /**
+   * Writes the report of a shard.
+   *
+   * @param shard
+   * @param testCases
+   * @param output
+   */
+  private Path write(String shard, String testCases, String output) throws IOException {
+    Path report = this.folder.newFolder(shard).toPath().resolve("report.xml");
+    String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+        + "<testsuite name=\"tst_app\" timestamp=\"2019-12-01T10:00:00\" hostname=\"build\" tests=\"0\""
+        + " failures=\"0\" errors=\"0\" time=\"0\">"
+        + "<properties><property name=\"QTestVersion\" value=\"5.12.7\"/></properties>" + testCases
+        + "<system-out>" + output + "</system-out><system-err/></testsuite>\n";
+    Files.write(report, xml.getBytes(StandardCharsets.UTF_8));
+    return report;
+  }
+
+  /**
+   * Reads the test cases of a report.
+   *
+   * @param report
+   */
+  private static List<TestCase> read(Path report) throws IOException {
+    List<TestCase> testCases = new ArrayList<>();
+    QtTestReport.read(report, testCases::add);
+    return testCases;
+  }
+
+  /**
+   * Parses the test suite of a report.
+   *
+   * @param report
+   */
+  private static Element parse(Path report) throws Exception {
+    return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(report.toFile()).getDocumentElement();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The {@link SchedulerTest} tests the ordering and the cancellation of the {@link Scheduler}.
+ */
+public class SchedulerTest {
+
+  @Test
+  public void testOrder() throws Exception {
+    List<String> started = Collections.synchronizedList(new ArrayList<>());
+    Scheduler scheduler = Scheduler.of(4);
+    for (String name : Arrays.asList("c", "b", "a")) {
+      scheduler.add(name, () -> {
+        started.add(name);
+        Thread.sleep(20);
+        return true;
+      });
+    }
+    scheduler.addOrder("a", "b").addOrder("b", "c");
+
+    Assert.assertTrue(scheduler.run());
+    Assert.assertEquals(Arrays.asList("a", "b", "c"), started);
+    Assert.assertTrue(scheduler.getFailed().isEmpty());
+  }
+
+  @Test
+  public void testOrderOfUnknownJob() throws Exception {
+    List<String> started = Collections.synchronizedList(new ArrayList<>());
+    Scheduler scheduler = Scheduler.of(1);
+    scheduler.add("a", () -> started.add("a")).add("b", () -> started.add("b"));
+    scheduler.addOrder("unknown", "b");
+
+    Assert.assertTrue(scheduler.run());
+    Assert.assertEquals(Arrays.asList("a", "b"), started);
+  }
+
+  @Test
+  public void testLimit() throws Exception {
+    CountDownLatch latch = new CountDownLatch(2);
+    Scheduler scheduler = Scheduler.of(2);
+    for (String name : Arrays.asList("a", "b")) {
+      scheduler.add(name, () -> {
+        latch.countDown();
+        // Both jobs only finish, if they are running concurrently
+        return latch.await(10, TimeUnit.SECONDS);
+      });
+    }
+
+    Assert.assertTrue(scheduler.run());
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    AtomicBoolean started = new AtomicBoolean();
+    Scheduler scheduler = Scheduler.of(2);
+    scheduler.add("a", () -> false).add("b", () -> started.getAndSet(true));
+    scheduler.addOrder("a", "b");
+
+    Assert.assertFalse(scheduler.run());
+    Assert.assertEquals(Arrays.asList("a"), scheduler.getFailed());
+    Assert.assertFalse(started.get());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    CountDownLatch running = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    Scheduler scheduler = Scheduler.of(2);
+    scheduler.add("slow", () -> {
+      running.countDown();
+      try {
+        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException e) {
+        interrupted.set(true);
+      }
+      return true;
+    });
+    scheduler.add("failing", () -> {
+      running.await();
+      return false;
+    });
+
+    Assert.assertFalse(scheduler.run());
+    Assert.assertEquals(Arrays.asList("failing"), scheduler.getFailed());
+    Assert.assertTrue(interrupted.get());
+  }
+
+  @Test
+  public void testException() throws Exception {
+    Scheduler scheduler = Scheduler.of(1);
+    scheduler.add("a", () -> {
+      throw new IOException("Failed");
+    });
+
+    try {
+      scheduler.run();
+      Assert.fail("The exception of the job is not thrown");
+    } catch (IOException e) {
+      Assert.assertEquals("Failed", e.getMessage());
+    }
+    Assert.assertEquals(Arrays.asList("a"), scheduler.getFailed());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCycle() throws Exception {
+    Scheduler scheduler = Scheduler.of(2);
+    scheduler.add("a", () -> true).add("b", () -> true);
+    scheduler.addOrder("a", "b").addOrder("b", "a");
+    scheduler.run();
+  }
+}
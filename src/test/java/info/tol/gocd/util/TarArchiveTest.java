@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2001-2019 Territorium Online Srl / TOL GmbH. All Rights Reserved.
+ *
+ * This file contains Original Code and/or Modifications of Original Code as defined in and that are
+ * subject to the Territorium Online License Version 1.0. You may not use this file except in
+ * compliance with the License. Please obtain a copy of the License at http://www.tol.info/license/
+ * and read it before using this file.
+ *
+ * The Original Code and all software distributed under the License are distributed on an 'AS IS'
+ * basis, WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESS OR IMPLIED, AND TERRITORIUM ONLINE HEREBY
+ * DISCLAIMS ALL SUCH WARRANTIES, INCLUDING WITHOUT LIMITATION, ANY WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE, QUIET ENJOYMENT OR NON-INFRINGEMENT. Please see the License for
+ * the specific language governing rights and limitations under the License.
+ */
+
+package info.tol.gocd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The {@link TarArchiveTest} writes archives with the {@link TarArchive} and reads them back, to
+ * check the long names, the symbolic links and the permissions.
+ */
+public class TarArchiveTest {
+
+  /**
+   * An entry of the archive, as read back.
+   */
+  private static class Entry {
+
+    private final char   type;
+    private final int    mode;
+    private final String link;
+    private final byte[] data;
+
+    /**
+     * Constructs an instance of {@link Entry}.
+     *
+     * @param type
+     * @param mode
+     * @param link
+     * @param data
+     */
+    private Entry(char type, int mode, String link, byte[] data) {
+      this.type = type;
+      this.mode = mode;
+      this.link = link;
+      this.data = data;
+    }
+  }
+
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testFiles() throws IOException {
+    Path source = this.folder.newFolder("source").toPath();
+    Files.createDirectories(source.resolve("bin"));
+    Files.write(source.resolve("bin/app"), "#!/bin/sh\n".getBytes(StandardCharsets.UTF_8));
+    Files.setPosixFilePermissions(source.resolve("bin/app"), PosixFilePermissions.fromString("rwxr-x---"));
+    Files.write(source.resolve("readme.txt"), new byte[0]);
+    Files.setPosixFilePermissions(source.resolve("readme.txt"), PosixFilePermissions.fromString("rw-r--r--"));
+
+    Path target = this.folder.getRoot().toPath().resolve("data.tar.gz");
+    Assert.assertEquals(10, TarArchive.write(source, target, 6));
+
+    Map<String, Entry> entries = TarArchiveTest.read(target);
+    Assert.assertEquals('5', entries.get("bin/").type);
+    Assert.assertEquals('0', entries.get("bin/app").type);
+    Assert.assertEquals(0750, entries.get("bin/app").mode);
+    Assert.assertEquals("#!/bin/sh\n", new String(entries.get("bin/app").data, StandardCharsets.UTF_8));
+    Assert.assertEquals(0644, entries.get("readme.txt").mode);
+    Assert.assertEquals(0, entries.get("readme.txt").data.length);
+  }
+
+  @Test
+  public void testLongNames() throws IOException {
+    Path source = this.folder.newFolder("source").toPath();
+    String directory = String.join("/", Collections.nCopies(12, "directory"));
+    String name = directory + "/" + String.join("", Collections.nCopies(30, "name")) + ".txt";
+    byte[] data = new byte[1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    Files.createDirectories(source.resolve(directory));
+    Files.write(source.resolve(name), data);
+    Files.createSymbolicLink(source.resolve("link"), Paths.get(name));
+
+    Path target = this.folder.getRoot().toPath().resolve("data.tar.gz");
+    Assert.assertEquals(data.length, TarArchive.write(source, target, 0));
+
+    Map<String, Entry> entries = TarArchiveTest.read(target);
+    Assert.assertArrayEquals(data, entries.get(name).data);
+    Assert.assertTrue(entries.containsKey(directory + "/"));
+    Assert.assertEquals(name, entries.get("link").link);
+  }
+
+  @Test
+  public void testSymbolicLinks() throws IOException {
+    Path source = this.folder.newFolder("source").toPath();
+    Files.createDirectories(source.resolve("lib"));
+    Files.write(source.resolve("lib/libapp.so.1.0.0"), new byte[] { 1, 2, 3 });
+    Files.createSymbolicLink(source.resolve("lib/libapp.so.1"), Paths.get("libapp.so.1.0.0"));
+    Files.createSymbolicLink(source.resolve("lib/missing"), Paths.get("../missing"));
+
+    Path target = this.folder.getRoot().toPath().resolve("data.tar.gz");
+    Assert.assertEquals(3, TarArchive.write(source, target, 6));
+
+    Map<String, Entry> entries = TarArchiveTest.read(target);
+    Assert.assertEquals('2', entries.get("lib/libapp.so.1").type);
+    Assert.assertEquals("libapp.so.1.0.0", entries.get("lib/libapp.so.1").link);
+    Assert.assertEquals(0, entries.get("lib/libapp.so.1").data.length);
+    Assert.assertEquals('2', entries.get("lib/missing").type);
+    Assert.assertEquals("../missing", entries.get("lib/missing").link);
+  }
+
+  /**
+   * Reads the entries of a gzip compressed tar archive. The pax headers are applied to the next
+   * entry.
+   *
+   * @param archive
+   */
+  private static Map<String, Entry> read(Path archive) throws IOException {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    try (InputStream stream = new GZIPInputStream(Files.newInputStream(archive))) {
+      DataInputStream input = new DataInputStream(stream);
+      Map<String, String> pax = new LinkedHashMap<>();
+      byte[] header = new byte[512];
+      while (true) {
+        try {
+          input.readFully(header);
+        } catch (EOFException e) {
+          Assert.fail("The archive doesn't end with two empty blocks");
+        }
+        if (TarArchiveTest.isEmpty(header)) {
+          input.readFully(header);
+          Assert.assertTrue(TarArchiveTest.isEmpty(header));
+          break;
+        }
+        TarArchiveTest.checkSum(header);
+        Assert.assertEquals("ustar", TarArchiveTest.getText(header, 257, 6));
+
+        char type = (char) header[156];
+        long size = TarArchiveTest.getOctal(header, 124, 12);
+        byte[] data = new byte[(int) size];
+        input.readFully(data);
+        input.readFully(new byte[(int) ((512 - (size % 512)) % 512)]);
+        if (type == 'x') {
+          TarArchiveTest.parsePax(data, pax);
+          continue;
+        }
+
+        String name = pax.getOrDefault("path", TarArchiveTest.getText(header, 0, 100));
+        String link = pax.getOrDefault("linkpath", TarArchiveTest.getText(header, 157, 100));
+        int mode = (int) TarArchiveTest.getOctal(header, 100, 8);
+        entries.put(name, new Entry(type, mode, link.isEmpty() ? null : link, data));
+        pax.clear();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Parses the records of a pax header, each record is "length key=value\n".
+   *
+   * @param data
+   * @param pax
+   */
+  private static void parsePax(byte[] data, Map<String, String> pax) {
+    int offset = 0;
+    while (offset < data.length) {
+      int space = offset;
+      while (data[space] != ' ') {
+        space++;
+      }
+      int length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+      String record = new String(data, space + 1, length - (space - offset) - 2, StandardCharsets.UTF_8);
+      Assert.assertEquals('\n', data[offset + length - 1]);
+      int index = record.indexOf('=');
+      pax.put(record.substring(0, index), record.substring(index + 1));
+      offset += length;
+    }
+  }
+
+  /**
+   * Verifies the checksum of a header.
+   *
+   * @param header
+   */
+  private static void checkSum(byte[] header) {
+    long checksum = 0;
+    for (int i = 0; i < header.length; i++) {
+      checksum += ((i >= 148) && (i < 156)) ? ' ' : (header[i] & 0xff);
+    }
+    Assert.assertEquals(checksum, TarArchiveTest.getOctal(header, 148, 8));
+  }
+
+  /**
+   * Returns <code>true</code> if the block is empty.
+   *
+   * @param header
+   */
+  private static boolean isEmpty(byte[] header) {
+    for (byte b : header) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the NUL terminated text of a field.
+   *
+   * @param header
+   * @param offset
+   * @param length
+   */
+  private static String getText(byte[] header, int offset, int length) {
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    for (int i = offset; (i < offset + length) && (header[i] != 0); i++) {
+      text.write(header[i]);
+    }
+    return new String(text.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the octal number of a field.
+   *
+   * @param header
+   * @param offset
+   * @param length
+   */
+  private static long getOctal(byte[] header, int offset, int length) {
+    return Long.parseLong(TarArchiveTest.getText(header, offset, length).trim(), 8);
+  }
+}